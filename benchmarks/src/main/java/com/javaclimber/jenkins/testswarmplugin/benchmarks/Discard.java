@@ -0,0 +1,58 @@
+package com.javaclimber.jenkins.testswarmplugin.benchmarks;
+
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Sinks which throw the output away but count it, so the work of producing
+ * it cannot be optimized out.
+ */
+final class Discard {
+
+	private Discard() {
+	}
+
+	static final class Stream extends OutputStream {
+
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	static final class Chars extends Writer {
+
+		long count;
+
+		@Override
+		public void write(int c) {
+			count++;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public void write(String str, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.javaclimber.jenkins.testswarmplugin.benchmarks;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+/**
+ * Generates synthetic <tt>action=job</tt> responses shaped like the ones a
+ * TestSwarm server returns, with a given number of runs and user agents and
+ * a mix of run statuses. The same arguments always give the same document.
+ */
+public final class JobJson {
+
+	private static final String[] BROWSERS = { "Chrome", "Firefox", "Safari",
+			"Opera", "IE", "Edge", "iOS", "Android" };
+
+	/**
+	 * How the statuses of the runs are spread over the user agents.
+	 */
+	public enum Mix {
+
+		/** every run passed everywhere, the common final poll */
+		PASSING(0, 0, 0, 0),
+
+		/** the job is done, with a few failures, errors and timeouts */
+		FAILING(0, 0, 5, 2),
+
+		/** half of the runs are still queued or running, the common poll */
+		RUNNING(30, 20, 1, 0);
+
+		// percentages, the rest passed
+		private final int newRuns;
+
+		private final int progressRuns;
+
+		private final int failedRuns;
+
+		private final int erroredRuns;
+
+		private Mix(int newRuns, int progressRuns, int failedRuns,
+				int erroredRuns) {
+			this.newRuns = newRuns;
+			this.progressRuns = progressRuns;
+			this.failedRuns = failedRuns;
+			this.erroredRuns = erroredRuns;
+		}
+
+		String pick(Random random) {
+			int p = random.nextInt(100);
+			if ((p -= newRuns) < 0)
+				return "new";
+			if ((p -= progressRuns) < 0)
+				return "progress";
+			if ((p -= failedRuns) < 0)
+				return "failed";
+			if ((p -= erroredRuns) < 0)
+				return random.nextBoolean() ? "error" : "timeout";
+			return "passed";
+		}
+	}
+
+	private JobJson() {
+	}
+
+	public static String userAgent(int index) {
+		return BROWSERS[index % BROWSERS.length] + "|"
+				+ (10 + index / BROWSERS.length);
+	}
+
+	public static String runName(int index) {
+		return "suite " + index;
+	}
+
+	public static String runUrl(int index) {
+		return "http://localhost/tests/suite" + index + "/index.html";
+	}
+
+	public static byte[] generate(int runs, int userAgents, Mix mix) {
+		Random random = new Random(31L * runs + userAgents);
+		StringBuilder json = new StringBuilder(runs * (80 + userAgents * 120));
+		json.append("{\"job\":{\"info\":{\"id\":1,\"name\":\"benchmark\",")
+				.append("\"nameHtml\":\"benchmark\",\"ownerName\":\"jenkins\"},")
+				.append("\"runs\":[");
+		for (int r = 0; r < runs; r++) {
+			if (r > 0)
+				json.append(',');
+			json.append("{\"info\":{\"id\":").append(r + 1)
+					.append(",\"name\":\"").append(runName(r))
+					.append("\",\"url\":\"").append(runUrl(r))
+					.append("\"},\"uaRuns\":{");
+			for (int ua = 0; ua < userAgents; ua++) {
+				if (ua > 0)
+					json.append(',');
+				String status = mix.pick(random);
+				json.append('"').append(userAgent(ua))
+						.append("\":{\"runStatus\":\"").append(status)
+						.append('"');
+				if (!"new".equals(status))
+					json.append(",\"runResultsUrl\":\"/result/")
+							.append(r * userAgents + ua)
+							.append("\",\"runResultsLabel\":\"")
+							.append(random.nextInt(200))
+							.append("\",\"runResultsTooltip\":\"")
+							.append(random.nextInt(200)).append(" passed\"");
+				json.append('}');
+			}
+			json.append("}}");
+		}
+		json.append("],\"userAgents\":{");
+		for (int ua = 0; ua < userAgents; ua++) {
+			if (ua > 0)
+				json.append(',');
+			json.append('"').append(userAgent(ua))
+					.append("\":{\"data\":{\"displaytitle\":\"")
+					.append(userAgent(ua).replace('|', ' '))
+					.append("\"}}");
+		}
+		json.append("}}}");
+		try {
+			return json.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new AssertionError(ex);
+		}
+	}
+
+}
@@ -0,0 +1,320 @@
+package com.javaclimber.jenkins.testswarmplugin.benchmarks;
+
+import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.javaclimber.jenkins.testswarmplugin.AddJobRequest;
+import com.javaclimber.jenkins.testswarmplugin.BuildMetrics;
+import com.javaclimber.jenkins.testswarmplugin.FakeTestSwarm;
+import com.javaclimber.jenkins.testswarmplugin.PollingPolicy;
+import com.javaclimber.jenkins.testswarmplugin.SwarmBehavior;
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmBuilder;
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmBuilder.TestSuiteData;
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmDecisionMaker;
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmHttpClient;
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmJobPoll;
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmMetrics;
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmPoller;
+
+/**
+ * Drives many simulated builds at once against a {@link FakeTestSwarm}:
+ * each one submits a job, or joins the job of another build, and waits for it
+ * through the shared poller the way the builder does. Prints the end-to-end latency of the builds, the
+ * request rate the server saw and what the polls cost the controller.
+ *
+ * Options are given as <tt>name=value</tt> arguments, see {@link #DEFAULTS}.
+ */
+public class LoadHarness {
+
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+
+	static {
+		// concurrent builds
+		DEFAULTS.put("builds", "200");
+		// builds waiting for the same job, like the configurations of a matrix
+		DEFAULTS.put("buildsPerJob", "1");
+		// test suites per job
+		DEFAULTS.put("runs", "20");
+		// connected browsers, clients per browser
+		DEFAULTS.put("browsers", "6");
+		DEFAULTS.put("clients", "4");
+		// time a client takes per run, and before it picks up a new job
+		DEFAULTS.put("runMillis", "3000");
+		DEFAULTS.put("latencyMillis", "1000");
+		// share of the runs failing, erroring and timing out
+		DEFAULTS.put("failureRate", "0.01");
+		DEFAULTS.put("errorRate", "0");
+		DEFAULTS.put("timeoutRate", "0");
+		// server misbehavior
+		DEFAULTS.put("delayMillis", "0");
+		DEFAULTS.put("slowRate", "0");
+		DEFAULTS.put("slowMillis", "5000");
+		DEFAULTS.put("hangRate", "0");
+		DEFAULTS.put("serverErrorRate", "0");
+		// the builder settings
+		DEFAULTS.put("pollingIntervalInSecs", "10");
+		DEFAULTS.put("timeOutPeriodInMins", "10");
+		DEFAULTS.put("minimumPassing", "1");
+		DEFAULTS.put("failFast", "false");
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<String, String>(
+				DEFAULTS);
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0 || !DEFAULTS.containsKey(arg.substring(0, eq)))
+				throw new IllegalArgumentException("Unknown option " + arg
+						+ ", expected one of " + DEFAULTS.keySet());
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		System.out.println("Options: " + options);
+
+		SwarmBehavior behavior = new SwarmBehavior()
+				.outcomes(number(options, "failureRate"),
+						number(options, "errorRate"),
+						number(options, "timeoutRate"))
+				.responseDelay(integer(options, "delayMillis"))
+				.slowResponses(number(options, "slowRate"),
+						integer(options, "slowMillis"))
+				.hungResponses(number(options, "hangRate"), 10 * 60 * 1000)
+				.serverErrors(number(options, "serverErrorRate"));
+		for (int b = 0; b < integer(options, "browsers"); b++)
+			behavior.browser(JobJson.userAgent(b), (int) integer(options,
+					"clients"), integer(options, "runMillis"), integer(
+					options, "latencyMillis"));
+
+		FakeTestSwarm swarm = new FakeTestSwarm(behavior);
+		swarm.start();
+		try {
+			run(swarm, options);
+		} finally {
+			swarm.stop();
+		}
+	}
+
+	private static void run(FakeTestSwarm swarm, Map<String, String> options)
+			throws InterruptedException {
+		int buildCount = (int) integer(options, "builds");
+		ExecutorService executors = Executors.newFixedThreadPool(buildCount);
+		int buildsPerJob = (int) Math.max(integer(options, "buildsPerJob"), 1);
+		List<SimulatedBuild> builds = new ArrayList<SimulatedBuild>();
+		FutureTask<Integer> submission = null;
+		for (int i = 0; i < buildCount; i++) {
+			if (i % buildsPerJob == 0)
+				submission = new FutureTask<Integer>(new Submission(i + 1,
+						swarm.getUrl(), options));
+			builds.add(new SimulatedBuild(submission, swarm.getUrl(), options));
+		}
+
+		long start = System.currentTimeMillis();
+		List<Future<Integer>> results = executors.invokeAll(builds);
+		long wallMillis = System.currentTimeMillis() - start;
+		executors.shutdown();
+
+		Map<String, Integer> outcomes = new LinkedHashMap<String, Integer>();
+		List<Long> latencies = new ArrayList<Long>();
+		Throwable firstFailure = null;
+		for (int i = 0; i < buildCount; i++) {
+			String outcome;
+			try {
+				outcome = describe(results.get(i).get());
+				latencies.add(builds.get(i).latencyInMillis);
+			} catch (ExecutionException ex) {
+				outcome = "error";
+				if (firstFailure == null)
+					firstFailure = ex.getCause();
+			}
+			Integer count = outcomes.get(outcome);
+			outcomes.put(outcome, count == null ? 1 : count + 1);
+		}
+		Collections.sort(latencies);
+
+		long polls = 0, requests = 0, notModified = 0, responseBytes = 0;
+		long requestMillis = 0, maxRequestMillis = 0, parseMillis = 0, evaluateMillis = 0;
+		for (SimulatedBuild build : builds) {
+			BuildMetrics metrics = build.metrics;
+			polls += metrics.getPolls();
+			requests += metrics.getRequests();
+			notModified += metrics.getNotModifiedRequests();
+			responseBytes += metrics.getResponseBytes();
+			requestMillis += metrics.getAverageRequestMillis()
+					* metrics.getRequests();
+			maxRequestMillis = Math.max(maxRequestMillis,
+					metrics.getMaxRequestMillis());
+			parseMillis += metrics.getParseMillis();
+			evaluateMillis += metrics.getEvaluateMillis();
+		}
+
+		double wallSecs = wallMillis / 1000.0;
+		System.out.println();
+		System.out.println("Builds: " + outcomes);
+		if (firstFailure != null)
+			System.out.println("First failure: " + firstFailure);
+		System.out.println("Wall time: " + wallSecs + " s");
+		if (!latencies.isEmpty())
+			System.out.println("End-to-end latency: median "
+					+ percentile(latencies, 50) + " ms, 95th "
+					+ percentile(latencies, 95) + " ms, max "
+					+ latencies.get(latencies.size() - 1) + " ms");
+		System.out.println("Server: " + swarm.getRequests() + " requests ("
+				+ rate(swarm.getRequests(), wallSecs) + "/s), "
+				+ swarm.getJobRequests() + " job requests ("
+				+ rate(swarm.getJobRequests(), wallSecs) + "/s), "
+				+ swarm.getNotModified() + " not modified, "
+				+ swarm.getBytesSent() + " bytes sent");
+		System.out.println("Server faults: " + swarm.getServerErrors()
+				+ " errors, " + swarm.getSlowResponses() + " slow, "
+				+ swarm.getHungResponses() + " hung");
+		System.out.println("Polls: " + polls + " polls, " + requests
+				+ " requests (" + notModified + " not modified), "
+				+ responseBytes + " bytes decoded");
+		System.out.println("Poll cost: average request "
+				+ (requests == 0 ? 0 : requestMillis / requests)
+				+ " ms, longest " + maxRequestMillis + " ms, parsing "
+				+ parseMillis + " ms, evaluating " + evaluateMillis
+				+ " ms in total");
+		System.out.println();
+		TestSwarmMetrics.get().writeText(new PrintWriter(System.out));
+	}
+
+	private static String describe(int jobStatus) {
+		switch (jobStatus) {
+		case TestSwarmBuilder.ALL_PASSING:
+			return "passing";
+		case TestSwarmBuilder.IN_PROGRESS_ENOUGH_PASSING_NO_ERRORS:
+			return "passing, still running";
+		case TestSwarmBuilder.FAILURE_DONE:
+		case TestSwarmBuilder.FAILURE_IN_PROGRESS:
+			return "failing";
+		default:
+			return "timed out";
+		}
+	}
+
+	private static long percentile(List<Long> sorted, int percentile) {
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(index, 0));
+	}
+
+	private static String rate(long count, double secs) {
+		return String.format("%.1f", secs == 0 ? 0 : count / secs);
+	}
+
+	private static long integer(Map<String, String> options, String name) {
+		return Long.parseLong(options.get(name));
+	}
+
+	private static double number(Map<String, String> options, String name) {
+		return Double.parseDouble(options.get(name));
+	}
+
+	/**
+	 * Submits a job, once for all the builds waiting for it.
+	 */
+	private static final class Submission implements Callable<Integer> {
+
+		private final int number;
+
+		private final String serverUrl;
+
+		private final Map<String, String> options;
+
+		Submission(int number, String serverUrl, Map<String, String> options) {
+			this.number = number;
+			this.serverUrl = serverUrl;
+			this.options = options;
+		}
+
+		public Integer call() throws Exception {
+			List<TestSuiteData> suites = new ArrayList<TestSuiteData>();
+			for (int r = 0; r < integer(options, "runs"); r++)
+				suites.add(new TestSuiteData(JobJson.runName(r), JobJson
+						.runUrl(r), true, false, null));
+
+			AddJobRequest request = new AddJobRequest("jenkins", "token",
+					"load #" + number, "3", "all", suites, "UTF-8");
+			return TestSwarmHttpClient.get().post(
+					serverUrl + "/api.php?action=addjob", request, request);
+		}
+	}
+
+	/**
+	 * One build: gets its job submitted and waits for the result like the
+	 * builder.
+	 */
+	private static final class SimulatedBuild implements Callable<Integer> {
+
+		private static final TestSwarmDecisionMaker DECISION_MAKER = new TestSwarmDecisionMaker();
+
+		private final FutureTask<Integer> submission;
+
+		private final String serverUrl;
+
+		private final Map<String, String> options;
+
+		final BuildMetrics metrics = new BuildMetrics();
+
+		volatile long latencyInMillis;
+
+		SimulatedBuild(FutureTask<Integer> submission, String serverUrl,
+				Map<String, String> options) {
+			this.submission = submission;
+			this.serverUrl = serverUrl;
+			this.options = options;
+		}
+
+		public Integer call() throws Exception {
+			long start = System.currentTimeMillis();
+			// the first build of the group to get here submits
+			submission.run();
+			int jobId;
+			try {
+				jobId = submission.get();
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof Exception)
+					throw (Exception) ex.getCause();
+				throw ex;
+			}
+			metrics.recordSubmit(System.currentTimeMillis() - start);
+
+			String jobUrl = serverUrl + "/api.php?format=json&action=job&item="
+					+ jobId;
+			BuildListener listener = new StreamBuildListener(
+					new Discard.Stream());
+			PollingPolicy pollingPolicy = new PollingPolicy(integer(options,
+					"pollingIntervalInSecs") * 1000, 0);
+			long now = System.currentTimeMillis();
+			TestSwarmJobPoll poll = new TestSwarmJobPoll(
+					Collections.singletonList(jobUrl), (int) integer(options,
+							"minimumPassing"),
+					Boolean.parseBoolean(options.get("failFast")),
+					pollingPolicy, start
+							+ integer(options, "timeOutPeriodInMins") * 60000,
+					DECISION_MAKER, listener, false);
+			poll.setMetrics(metrics);
+			TestSwarmPoller.get().start(poll, pollingPolicy.firstDelay(now));
+			try {
+				int jobStatus = poll.awaitResult();
+				latencyInMillis = System.currentTimeMillis() - start;
+				return jobStatus;
+			} finally {
+				TestSwarmHttpClient.get().forget(jobUrl);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+package com.javaclimber.jenkins.testswarmplugin.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.javaclimber.jenkins.testswarmplugin.JobSnapshot;
+import com.javaclimber.jenkins.testswarmplugin.SuiteOutcome;
+import com.javaclimber.jenkins.testswarmplugin.TapReport;
+import com.javaclimber.jenkins.testswarmplugin.TapWriter;
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmBuilder.TestSuiteData;
+
+/**
+ * Writing the TAP report of a finished job, buffered the way the build
+ * writes it to the workspace.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReportBenchmark {
+
+	@Param({ "10", "100", "1000", "10000" })
+	public int runs;
+
+	@Param({ "12" })
+	public int userAgents;
+
+	@Param({ "PASSING", "FAILING" })
+	public JobJson.Mix mix;
+
+	private TapReport report;
+
+	@Setup
+	public void setUp() throws IOException {
+		List<TestSuiteData> disabledTests = new ArrayList<TestSuiteData>();
+		for (int i = 0; i < 10; i++)
+			disabledTests.add(new TestSuiteData("disabled " + i,
+					JobJson.runUrl(runs + i), false, true, null));
+		report = new TapReport(JobSnapshot.parse(JobJson.generate(runs,
+				userAgents, mix)), 1,
+				Collections.singletonList("http://localhost/job/1"),
+				Collections.<SuiteOutcome> emptyList(), disabledTests);
+	}
+
+	@Benchmark
+	public long tap() throws IOException {
+		Discard.Chars out = new Discard.Chars();
+		TapWriter tap = new TapWriter(new BufferedWriter(out));
+		report.write(tap);
+		tap.close();
+		return out.count;
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.javaclimber.jenkins.testswarmplugin.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.javaclimber.jenkins.testswarmplugin.JobSnapshot;
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmDecisionMaker;
+
+/**
+ * The work of every poll once a job response has arrived: parsing it,
+ * comparing it with the previous snapshot and deciding the job status.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StatusBenchmark {
+
+	@Param({ "10", "100", "1000", "10000" })
+	public int runs;
+
+	@Param({ "12" })
+	public int userAgents;
+
+	@Param({ "PASSING", "FAILING", "RUNNING" })
+	public JobJson.Mix mix;
+
+	private final TestSwarmDecisionMaker decisionMaker = new TestSwarmDecisionMaker();
+
+	private byte[] json;
+
+	private JobSnapshot snapshot;
+
+	private JobSnapshot previous;
+
+	@Setup
+	public void setUp() throws IOException {
+		json = JobJson.generate(runs, userAgents, mix);
+		snapshot = JobSnapshot.parse(json);
+		previous = JobSnapshot.parse(json);
+	}
+
+	@Benchmark
+	public JobSnapshot parse() throws IOException {
+		return JobSnapshot.parse(json);
+	}
+
+	@Benchmark
+	public boolean compare() {
+		return snapshot.hasSameStatuses(previous);
+	}
+
+	@Benchmark
+	public int evaluate() {
+		return decisionMaker.jobStatus(snapshot, 1, false, null);
+	}
+
+	@Benchmark
+	public int poll() throws IOException {
+		JobSnapshot parsed = JobSnapshot.parse(json);
+		if (parsed.hasSameStatuses(previous))
+			return -1;
+		return decisionMaker.jobStatus(parsed, 1, false, null);
+	}
+
+}
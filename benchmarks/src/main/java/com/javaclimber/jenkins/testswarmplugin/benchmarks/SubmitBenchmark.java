@@ -0,0 +1,58 @@
+package com.javaclimber.jenkins.testswarmplugin.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.javaclimber.jenkins.testswarmplugin.AddJobRequest;
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmBuilder.TestSuiteData;
+
+/**
+ * Encoding the <tt>addjob</tt> form body for a job with the given number of
+ * suites, half of them with the cache cracker on and some with non-ASCII
+ * names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SubmitBenchmark {
+
+	@Param({ "10", "100", "1000", "10000" })
+	public int suites;
+
+	private List<TestSuiteData> testSuites;
+
+	@Setup
+	public void setUp() {
+		testSuites = new ArrayList<TestSuiteData>();
+		for (int i = 0; i < suites; i++)
+			testSuites.add(new TestSuiteData(i % 10 == 0 ? "Prüfung " + i
+					: JobJson.runName(i), JobJson.runUrl(i), i % 2 == 0,
+					false, null));
+	}
+
+	@Benchmark
+	public long encode() throws IOException {
+		Discard.Stream out = new Discard.Stream();
+		new AddJobRequest("jenkins", "0123456789abcdef", "Build #1 (Chrome)",
+				"3", "popular", testSuites, "UTF-8").writeTo(out);
+		return out.count;
+	}
+
+}
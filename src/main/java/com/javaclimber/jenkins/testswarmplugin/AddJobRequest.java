@@ -0,0 +1,245 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import hudson.Util;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmBuilder.TestSuiteData;
+
+/**
+ * Form-encoded body of an <tt>addjob</tt> call, written straight to the
+ * connection so submitting thousands of suites takes constant memory. Keys
+ * are encoded once up front and values are percent-encoded byte by byte
+ * without building intermediate strings.
+ */
+public class AddJobRequest implements TestSwarmHttpClient.RequestBody,
+		TestSwarmHttpClient.ResponseHandler<Integer> {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte[] AUTH_TOKEN = ascii("&authToken=");
+
+	private static final byte[] JOB_NAME = ascii("&jobName=");
+
+	private static final byte[] RUN_MAX = ascii("&runMax=");
+
+	private static final byte[] BROWSER_SETS = ascii("&browserSets%5B%5D=");
+
+	private static final byte[] RUN_NAMES = ascii("&runNames%5B%5D=");
+
+	private static final byte[] RUN_URLS = ascii("&runUrls%5B%5D=");
+
+	private static final byte[] AUTH_ID = ascii("authID=");
+
+	private static final byte[] HEX = ascii("0123456789ABCDEF");
+
+	private static final String MASKED_AUTH_TOKEN = "********";
+
+	// thread safe, shared by every submission
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final String projectId;
+
+	private final String authToken;
+
+	private final String jobName;
+
+	private final String maxRuns;
+
+	private final String browserSet;
+
+	private final List<TestSuiteData> testSuites;
+
+	// encoding of the run names and urls
+	private final Charset charset;
+
+	private final String cacheKiller;
+
+	public AddJobRequest(String projectId, String authToken, String jobName,
+			String maxRuns, String browserSet, List<TestSuiteData> testSuites,
+			String charset) {
+		this.projectId = projectId;
+		this.authToken = authToken;
+		this.jobName = jobName;
+		this.maxRuns = maxRuns;
+		this.browserSet = browserSet;
+		this.testSuites = testSuites;
+		this.charset = Charset.forName(charset);
+		this.cacheKiller = "cache_killer=" + System.currentTimeMillis();
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		writeTo(out, authToken);
+	}
+
+	/**
+	 * Writes the body for the build log, with the auth token masked.
+	 */
+	public void logTo(OutputStream out) throws IOException {
+		writeTo(out, MASKED_AUTH_TOKEN);
+	}
+
+	private void writeTo(OutputStream out, String authToken)
+			throws IOException {
+		OutputStream body = new BufferedOutputStream(out, 8192);
+
+		body.write(AUTH_ID);
+		encode(body, projectId, UTF_8);
+		body.write(AUTH_TOKEN);
+		encode(body, authToken, UTF_8);
+		body.write(JOB_NAME);
+		encode(body, jobName, UTF_8);
+		body.write(RUN_MAX);
+		encode(body, maxRuns, UTF_8);
+		body.write(BROWSER_SETS);
+		encode(body, browserSet, UTF_8);
+
+		for (TestSuiteData testSuite : testSuites) {
+			body.write(RUN_NAMES);
+			encode(body, testSuite.getTestName(), charset);
+			body.write(RUN_URLS);
+			encode(body, testSuite.getTestUrl(), charset);
+			if (testSuite.isTestCacheCracker()) {
+				encode(body, testSuite.getTestUrl().indexOf('?') >= 0 ? "&"
+						: "?", charset);
+				encode(body, cacheKiller, charset);
+			}
+		}
+		body.flush();
+	}
+
+	/**
+	 * @return a digest of everything deciding what the job runs where and
+	 *         how its runs are reported: the project, the number of runs,
+	 *         the browser set and the suite names and urls in order, but not
+	 *         the job name or the cache killer
+	 */
+	public String getReuseKey() {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+		update(digest, projectId);
+		update(digest, maxRuns);
+		update(digest, browserSet);
+		for (TestSuiteData testSuite : testSuites) {
+			update(digest, testSuite.getTestName());
+			update(digest, testSuite.getTestUrl());
+			digest.update((byte) (testSuite.isTestCacheCracker() ? 1 : 0));
+		}
+		return Util.toHexString(digest.digest());
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		if (value != null)
+			digest.update(value.getBytes(UTF_8));
+		digest.update((byte) 0);
+	}
+
+	/**
+	 * Reads the id of the new job from the <tt>addjob</tt> response.
+	 */
+	public Integer handle(InputStream in) throws IOException {
+		JsonParser parser = JSON_FACTORY.createJsonParser(in);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("no result from job submission");
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if ("addjob".equals(field)
+						&& parser.getCurrentToken() == JsonToken.START_OBJECT) {
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String addJobField = parser.getCurrentName();
+						parser.nextToken();
+						if ("id".equals(addJobField))
+							return parser.getIntValue();
+						parser.skipChildren();
+					}
+				} else if ("error".equals(field)
+						&& parser.getCurrentToken() == JsonToken.START_OBJECT) {
+					throw new IOException("job submission failed: "
+							+ readError(parser));
+				} else {
+					parser.skipChildren();
+				}
+			}
+			throw new IOException("no job id in job submission result");
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Reads the scalar fields of an <tt>error</tt> object into one line.
+	 */
+	static String readError(JsonParser parser) throws IOException {
+		StringBuilder error = new StringBuilder();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if (parser.getCurrentToken().isScalarValue()) {
+				if (error.length() > 0)
+					error.append(", ");
+				error.append(field).append('=').append(parser.getText());
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return error.toString();
+	}
+
+	/**
+	 * Writes the value the way {@link java.net.URLEncoder} would encode it.
+	 */
+	static void encode(OutputStream out, String value, Charset charset)
+			throws IOException {
+		if (value == null)
+			return;
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9') || c == '.' || c == '-'
+					|| c == '*' || c == '_') {
+				out.write(c);
+			} else if (c == ' ') {
+				out.write('+');
+			} else if (c < 0x80) {
+				percent(out, c);
+			} else {
+				// keep surrogate pairs together
+				int end = Character.isHighSurrogate(c) && i + 1 < length ? i + 2
+						: i + 1;
+				for (byte b : value.substring(i, end).getBytes(charset))
+					percent(out, b & 0xFF);
+				i = end - 1;
+			}
+		}
+	}
+
+	private static void percent(OutputStream out, int b) throws IOException {
+		out.write('%');
+		out.write(HEX[b >> 4]);
+		out.write(HEX[b & 0x0F]);
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(Charset.forName("US-ASCII"));
+	}
+
+}
@@ -0,0 +1,84 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * Authenticated, form-encoded call to one of the TestSwarm API actions which
+ * change a job, such as <tt>wiperun</tt>. The response is only checked for
+ * an error.
+ */
+public class ApiRequest implements TestSwarmHttpClient.RequestBody,
+		TestSwarmHttpClient.ResponseHandler<Void> {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// thread safe, shared by every call
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final String action;
+
+	private final Map<String, String> params = new LinkedHashMap<String, String>();
+
+	public ApiRequest(String action, String projectId, String authToken) {
+		this.action = action;
+		param("authID", projectId);
+		param("authToken", authToken);
+	}
+
+	public ApiRequest param(String name, String value) {
+		params.put(name, value);
+		return this;
+	}
+
+	/**
+	 * Sends the request to the given TestSwarm server.
+	 */
+	public void post(String testswarmServerUrl) throws IOException {
+		TestSwarmHttpClient.get().post(
+				testswarmServerUrl + "/api.php?action=" + action, this, this);
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		boolean first = true;
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			if (!first)
+				out.write('&');
+			first = false;
+			AddJobRequest.encode(out, param.getKey(), UTF_8);
+			out.write('=');
+			AddJobRequest.encode(out, param.getValue(), UTF_8);
+		}
+		out.flush();
+	}
+
+	public Void handle(InputStream in) throws IOException {
+		JsonParser parser = JSON_FACTORY.createJsonParser(in);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("no result from " + action);
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if ("error".equals(field)
+						&& parser.getCurrentToken() == JsonToken.START_OBJECT)
+					throw new IOException(action + " failed: "
+							+ AddJobRequest.readError(parser));
+				parser.skipChildren();
+			}
+			return null;
+		} finally {
+			parser.close();
+		}
+	}
+
+}
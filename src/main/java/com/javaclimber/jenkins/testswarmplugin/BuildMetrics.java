@@ -0,0 +1,164 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Where the time of one TestSwarm build went: submitting the jobs, polling
+ * them, parsing and judging the responses and writing the reports, and when
+ * the first and last results came in relative to the submission. Every
+ * measurement is also added to the controller-wide {@link TestSwarmMetrics}.
+ *
+ * Kept with the build in its {@link TestSwarmBuildAction}.
+ */
+public class BuildMetrics {
+
+	private long submitMillis;
+
+	private int polls;
+
+	private int requests;
+
+	private int notModifiedRequests;
+
+	private long requestMillis;
+
+	private long maxRequestMillis;
+
+	private long responseBytes;
+
+	private long parseNanos;
+
+	private long evaluateNanos;
+
+	private long reportMillis;
+
+	// from the end of the submission, -1 while unknown
+	private long firstResultMillis = -1;
+
+	private Map<String, Long> lastResultMillis = new LinkedHashMap<String, Long>();
+
+	public synchronized void recordSubmit(long millis) {
+		submitMillis += millis;
+		TestSwarmMetrics.get().submits.incrementAndGet();
+		TestSwarmMetrics.get().submitMillis.addAndGet(millis);
+	}
+
+	public synchronized void recordPoll() {
+		polls++;
+		TestSwarmMetrics.get().polls.incrementAndGet();
+	}
+
+	/**
+	 * Records the request for one job made by a poll.
+	 *
+	 * @param bytes
+	 *            size of the decoded response body, 0 if it was not modified
+	 */
+	public synchronized void recordRequest(long millis, long bytes,
+			boolean notModified) {
+		requests++;
+		requestMillis += millis;
+		maxRequestMillis = Math.max(maxRequestMillis, millis);
+		responseBytes += bytes;
+		TestSwarmMetrics metrics = TestSwarmMetrics.get();
+		metrics.requests.incrementAndGet();
+		metrics.requestMillis.addAndGet(millis);
+		metrics.responseBytes.addAndGet(bytes);
+		if (notModified) {
+			notModifiedRequests++;
+			metrics.notModifiedRequests.incrementAndGet();
+		}
+	}
+
+	public synchronized void recordParse(long nanos) {
+		parseNanos += nanos;
+		TestSwarmMetrics.get().parseNanos.addAndGet(nanos);
+	}
+
+	public synchronized void recordEvaluation(long nanos) {
+		evaluateNanos += nanos;
+		TestSwarmMetrics.get().evaluateNanos.addAndGet(nanos);
+	}
+
+	public synchronized void recordReport(long millis) {
+		reportMillis += millis;
+		TestSwarmMetrics.get().reportMillis.addAndGet(millis);
+	}
+
+	/**
+	 * Records when the results came in, from the times the polls first saw
+	 * each run finished.
+	 */
+	public synchronized void recordResults(RunTimings timings,
+			long submittedAt) {
+		TestSwarmMetrics.get().builds.incrementAndGet();
+		if (timings == null)
+			return;
+		long first = timings.getFirstFinishedAt();
+		if (first > 0)
+			firstResultMillis = first - submittedAt;
+		for (Map.Entry<String, Long> last : timings.getLastFinishedAt()
+				.entrySet())
+			lastResultMillis.put(last.getKey(), last.getValue() - submittedAt);
+	}
+
+	public synchronized long getSubmitMillis() {
+		return submitMillis;
+	}
+
+	public synchronized int getPolls() {
+		return polls;
+	}
+
+	public synchronized int getRequests() {
+		return requests;
+	}
+
+	public synchronized int getNotModifiedRequests() {
+		return notModifiedRequests;
+	}
+
+	public synchronized long getAverageRequestMillis() {
+		return requests == 0 ? 0 : requestMillis / requests;
+	}
+
+	public synchronized long getMaxRequestMillis() {
+		return maxRequestMillis;
+	}
+
+	public synchronized long getResponseBytes() {
+		return responseBytes;
+	}
+
+	public synchronized long getParseMillis() {
+		return parseNanos / 1000000;
+	}
+
+	public synchronized long getEvaluateMillis() {
+		return evaluateNanos / 1000000;
+	}
+
+	public synchronized long getReportMillis() {
+		return reportMillis;
+	}
+
+	/**
+	 * @return time from the submission to the first result in any browser,
+	 *         or -1 if there was none
+	 */
+	public synchronized long getFirstResultMillis() {
+		return firstResultMillis;
+	}
+
+	/**
+	 * @return per user agent, the time from the submission to its last
+	 *         result
+	 */
+	public synchronized Map<String, Long> getLastResultMillis() {
+		return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(
+				lastResultMillis));
+	}
+
+}
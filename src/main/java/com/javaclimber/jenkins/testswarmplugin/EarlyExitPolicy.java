@@ -0,0 +1,119 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Ends the wait for a job once enough browsers passed every run, instead of
+ * waiting for the slowest browsers to finish as well. The runs left over
+ * keep going unless the rule asks to <tt>cancel</tt> them, in which case
+ * the {@link JobRegistry} deletes the job so they stop taking up clients
+ * other builds need. TestSwarm cannot cancel single runs, so the job is
+ * then gone from the server along with the links to it.
+ *
+ * A job can end early when its status is
+ * {@link TestSwarmBuilder#IN_PROGRESS_ENOUGH_PASSING_NO_ERRORS}, that is no
+ * run failed and every run passed in <tt>minimumPassing</tt> browsers. The
+ * <tt>quorum</tt> rule ends it then; the <tt>per-family</tt> rule also
+ * requires the passes to include <tt>minimumPassing</tt> versions of every
+ * browser family, such as Chrome or Firefox, or all versions of a family
+ * with fewer.
+ */
+public class EarlyExitPolicy {
+
+	private final boolean perFamily;
+
+	private final boolean cancelJobs;
+
+	public EarlyExitPolicy(boolean perFamily, boolean cancelJobs) {
+		this.perFamily = perFamily;
+		this.cancelJobs = cancelJobs;
+	}
+
+	/**
+	 * Parses a rule such as <tt>quorum</tt> or <tt>per-family, cancel</tt>.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the rule is not understood
+	 */
+	public static EarlyExitPolicy parse(String rule) {
+		Boolean perFamily = null;
+		boolean cancelJobs = false;
+		for (String word : rule.trim().toLowerCase().split("[,\\s]+")) {
+			if ("quorum".equals(word) && perFamily == null)
+				perFamily = false;
+			else if ("per-family".equals(word) && perFamily == null)
+				perFamily = true;
+			else if ("cancel".equals(word))
+				cancelJobs = true;
+			else if (word.length() > 0)
+				throw new IllegalArgumentException("Unknown early exit rule "
+						+ word);
+		}
+		if (perFamily == null)
+			throw new IllegalArgumentException(
+					"Early exit needs a rule, quorum or per-family");
+		return new EarlyExitPolicy(perFamily, cancelJobs);
+	}
+
+	/**
+	 * @return true if the runs left over are to be deleted with the job
+	 */
+	public boolean isCancellingJobs() {
+		return cancelJobs;
+	}
+
+	/**
+	 * @return true if the job can end with the given status without waiting
+	 *         for the runs still queued or running
+	 */
+	public boolean isDecided(JobSnapshot snapshot, int jobStatus,
+			int minimumPassing) {
+		if (jobStatus != TestSwarmBuilder.IN_PROGRESS_ENOUGH_PASSING_NO_ERRORS)
+			return false;
+		return !perFamily || passedInEveryFamily(snapshot, minimumPassing);
+	}
+
+	private static boolean passedInEveryFamily(JobSnapshot snapshot,
+			int minimumPassing) {
+		Map<String, int[]> families = new LinkedHashMap<String, int[]>();
+		int[] familyOf = new int[snapshot.getUserAgentCount()];
+		for (int ua = 0; ua < snapshot.getUserAgentCount(); ua++) {
+			String family = family(snapshot.getUserAgent(ua));
+			// index and number of versions of the family
+			int[] versions = families.get(family);
+			if (versions == null) {
+				versions = new int[] { families.size(), 0 };
+				families.put(family, versions);
+			}
+			versions[1]++;
+			familyOf[ua] = versions[0];
+		}
+		int[] required = new int[families.size()];
+		for (int[] family : families.values())
+			required[family[0]] = Math.min(minimumPassing, family[1]);
+
+		int[] passed = new int[families.size()];
+		for (JobSnapshot.Run run : snapshot.getRuns()) {
+			Arrays.fill(passed, 0);
+			for (int ua = 0; ua < snapshot.getUserAgentCount(); ua++)
+				if (run.getStatus(ua) == RunStatus.PASSED)
+					passed[familyOf[ua]]++;
+			for (int f = 0; f < passed.length; f++)
+				if (passed[f] < required[f])
+					return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the browser of a TestSwarm user agent id such as
+	 *         <tt>Chrome|20</tt>
+	 */
+	static String family(String userAgent) {
+		int bar = userAgent.indexOf('|');
+		return bar < 0 ? userAgent : userAgent.substring(0, bar);
+	}
+
+}
@@ -0,0 +1,195 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmBuilder.TestSuiteData;
+
+/**
+ * Writes the outcome of a build as JUnit XML, one testsuite per run and one
+ * testcase per user agent, so the JUnit publisher can track each browser
+ * separately. The document is produced with a streaming writer straight from
+ * the final snapshot and nothing but the counts of the current run is kept
+ * in memory.
+ */
+public class JUnitReportWriter {
+
+	private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory
+			.newInstance();
+
+	private final XMLStreamWriter xml;
+
+	public JUnitReportWriter(OutputStream out) throws IOException {
+		try {
+			this.xml = OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+		} catch (XMLStreamException ex) {
+			throw asIOException(ex);
+		}
+	}
+
+	/**
+	 * Writes the whole report and closes the writer, but not the stream.
+	 */
+	public void write(TestSwarmExecution execution) throws IOException {
+		write(execution.getSnapshot(), execution.getTimings(),
+				execution.getReusedSuites(), execution.getDisabledTestSuites());
+	}
+
+	/**
+	 * Writes the report of a snapshot and closes the writer, but not the
+	 * stream.
+	 *
+	 * @param reusedSuites
+	 *            suites reused from earlier builds, whose runs come after the
+	 *            runs of the submitted jobs in the snapshot
+	 */
+	public void write(JobSnapshot snapshot, RunTimings timings,
+			List<SuiteOutcome> reusedSuites, List<TestSuiteData> disabledTests)
+			throws IOException {
+		try {
+			int firstReused = snapshot.getRunCount() - reusedSuites.size();
+
+			xml.writeStartDocument("UTF-8", "1.0");
+			xml.writeStartElement("testsuites");
+			int[] counts = new int[RunStatus.count()];
+			for (int r = 0; r < snapshot.getRunCount(); r++) {
+				writeRun(snapshot, r, counts, r < firstReused ? timings : null,
+						r < firstReused ? null : reusedSuites
+								.get(r - firstReused));
+			}
+			for (TestSuiteData disabledTest : disabledTests)
+				writeDisabled(disabledTest);
+			xml.writeEndElement();
+			xml.writeEndDocument();
+			xml.flush();
+			xml.close();
+		} catch (XMLStreamException ex) {
+			throw asIOException(ex);
+		}
+	}
+
+	private void writeRun(JobSnapshot snapshot, int r, int[] counts,
+			RunTimings timings, SuiteOutcome reused)
+			throws XMLStreamException {
+		JobSnapshot.Run run = snapshot.getRun(r);
+		Arrays.fill(counts, 0);
+		run.countStatuses(counts);
+		int tests = 0;
+		for (int count : counts)
+			tests += count;
+		long totalTime = 0;
+		if (timings != null) {
+			for (int ua = 0; ua < snapshot.getUserAgentCount(); ua++) {
+				long duration = timings.getDuration(r,
+						snapshot.getUserAgent(ua));
+				if (duration > 0)
+					totalTime += duration;
+			}
+		}
+
+		xml.writeStartElement("testsuite");
+		xml.writeAttribute("name", nonNull(run.getName()));
+		xml.writeAttribute("tests", String.valueOf(tests));
+		xml.writeAttribute("failures",
+				String.valueOf(counts[RunStatus.FAILED.ordinal()]));
+		xml.writeAttribute("errors", String.valueOf(counts[RunStatus.ERROR
+				.ordinal()]
+				+ counts[RunStatus.TIMEOUT.ordinal()]
+				+ counts[RunStatus.UNKNOWN.ordinal()]));
+		xml.writeAttribute("skipped",
+				String.valueOf(counts[RunStatus.NEW.ordinal()]
+						+ counts[RunStatus.PROGRESS.ordinal()]));
+		xml.writeAttribute("time", seconds(totalTime));
+
+		xml.writeStartElement("properties");
+		writeProperty("url", run.getUrl());
+		if (reused != null)
+			writeProperty("reusedFromBuild",
+					String.valueOf(reused.getBuildNumber()));
+		xml.writeEndElement();
+
+		for (int ua = 0; ua < snapshot.getUserAgentCount(); ua++) {
+			RunStatus status = run.getStatus(ua);
+			if (status == null)
+				continue;
+			String userAgent = snapshot.getUserAgent(ua);
+			long duration = timings == null ? -1 : timings.getDuration(r,
+					userAgent);
+
+			xml.writeStartElement("testcase");
+			xml.writeAttribute("classname", nonNull(run.getName()));
+			xml.writeAttribute("name", userAgent);
+			xml.writeAttribute("time", seconds(duration));
+			switch (status) {
+			case PASSED:
+				break;
+			case FAILED:
+				writeEmpty("failure", "failed in " + userAgent);
+				break;
+			case NEW:
+			case PROGRESS:
+				writeEmpty("skipped", "not finished in " + userAgent);
+				break;
+			default:
+				writeEmpty("error", status.getApiName() + " in " + userAgent);
+			}
+			xml.writeEndElement();
+		}
+		xml.writeEndElement();
+	}
+
+	private void writeDisabled(TestSuiteData disabledTest)
+			throws XMLStreamException {
+		xml.writeStartElement("testsuite");
+		xml.writeAttribute("name", nonNull(disabledTest.getTestName()));
+		xml.writeAttribute("tests", "1");
+		xml.writeAttribute("failures", "0");
+		xml.writeAttribute("errors", "0");
+		xml.writeAttribute("skipped", "1");
+		xml.writeAttribute("time", "0");
+		xml.writeStartElement("testcase");
+		xml.writeAttribute("classname", nonNull(disabledTest.getTestName()));
+		xml.writeAttribute("name", "disabled");
+		xml.writeAttribute("time", "0");
+		writeEmpty("skipped", "test disabled");
+		xml.writeEndElement();
+		xml.writeEndElement();
+	}
+
+	private void writeProperty(String name, String value)
+			throws XMLStreamException {
+		xml.writeEmptyElement("property");
+		xml.writeAttribute("name", name);
+		xml.writeAttribute("value", nonNull(value));
+	}
+
+	private void writeEmpty(String element, String message)
+			throws XMLStreamException {
+		xml.writeEmptyElement(element);
+		xml.writeAttribute("message", message);
+	}
+
+	private static String seconds(long millis) {
+		if (millis <= 0)
+			return "0";
+		return String.format(Locale.ENGLISH, "%.3f", millis / 1000.0);
+	}
+
+	private static String nonNull(String value) {
+		return value == null ? "" : value;
+	}
+
+	private static IOException asIOException(XMLStreamException ex) {
+		IOException io = new IOException(ex.getMessage());
+		io.initCause(ex);
+		return io;
+	}
+
+}
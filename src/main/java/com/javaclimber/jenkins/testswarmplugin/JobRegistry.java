@@ -0,0 +1,522 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.Secret;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide record of the TestSwarm jobs builds are using, kept in
+ * <tt>testswarm-jobs.xml</tt> in the Jenkins home so it survives a restart.
+ * A job is held by the builds using its results and is deleted on the
+ * server through the <tt>wipejob</tt> API once the last of them abandons it
+ * with runs left, so aborted or timed out builds do not leave runs taking
+ * up clients. Jobs of builds that failed or were decided early stay on the
+ * server, as their reports link to them. The {@link Reaper} deletes the
+ * jobs of builds which are gone or ended without letting go of them.
+ *
+ * Jobs submitted with a reuse key are also kept for a while after the last
+ * build let go of them if every run passed, so a build submitting the same
+ * suites to the same browsers can use their results instead of submitting
+ * its own job, see {@link #submit}. Only the build which submitted a job
+ * retries its runs.
+ */
+public final class JobRegistry {
+
+	static final String REGISTRY_FILE = "testswarm-jobs.xml";
+
+	private static final Logger LOGGER = Logger.getLogger(JobRegistry.class
+			.getName());
+
+	// how long a finished job is kept for reuse at most
+	static final long REUSE_RETENTION_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+	private static JobRegistry instance;
+
+	private final transient XmlFile file;
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	// submissions under way by reuse key, for builds submitting the same
+	private final transient Map<String, FutureTask<Integer>> submissions =
+			new HashMap<String, FutureTask<Integer>>();
+
+	// one write of the file at a time, see save()
+	private final transient Object saveLock = new Object();
+
+	// changed since the last write
+	private transient boolean dirty;
+
+	JobRegistry(XmlFile file) {
+		this.file = file;
+	}
+
+	public static synchronized JobRegistry get() {
+		if (instance == null) {
+			instance = new JobRegistry(new XmlFile(Hudson.XSTREAM, new File(
+					Hudson.getInstance().getRootDir(), REGISTRY_FILE)));
+			instance.load();
+		}
+		return instance;
+	}
+
+	/**
+	 * Records that the build submitted the job and holds it.
+	 *
+	 * @param key
+	 *            reuse key of the job, or null if it is not to be reused
+	 */
+	public void register(String testswarmServerUrl, int jobId, String key,
+			String projectId, String authToken, Run<?, ?> build) {
+		synchronized (this) {
+			Entry entry = find(testswarmServerUrl, jobId);
+			if (entry == null) {
+				entry = new Entry(testswarmServerUrl, jobId, key, projectId,
+						authToken, holderOf(build));
+				entries.add(entry);
+			}
+			hold(entry, build);
+		}
+		save();
+	}
+
+	/**
+	 * Gets the build a job for the key: a job submitted with the same key to
+	 * the same server that is still held by a build or passed no longer than
+	 * <tt>reuseWindow</tt> ago, or else the job <tt>addJob</tt>
+	 * submits. Builds submitting the same key while a submission is under
+	 * way wait for it and share its job. The build holds the job either way.
+	 *
+	 * @param addJob
+	 *            submits the job and returns its id
+	 * @return the id of the job
+	 */
+	public int submit(final String testswarmServerUrl, final String key,
+			long reuseWindow, final String projectId, final String authToken,
+			final Run<?, ?> build, final Callable<Integer> addJob,
+			PrintStream log) throws Exception {
+		String submissionKey = testswarmServerUrl + "\n" + key;
+		FutureTask<Integer> submission;
+		boolean submitting = false;
+		int reused = 0;
+		synchronized (this) {
+			Entry entry = findReusable(testswarmServerUrl, key, reuseWindow);
+			if (entry != null) {
+				hold(entry, build);
+				reused = entry.jobId;
+			}
+		}
+		if (reused != 0) {
+			save();
+			log.println("Using TestSwarm job " + reused
+					+ ", submitted earlier with the same suites and browsers");
+			return reused;
+		}
+		synchronized (this) {
+			submission = submissions.get(submissionKey);
+			if (submission == null) {
+				submission = new FutureTask<Integer>(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						int jobId = addJob.call();
+						// before the builds waiting for the submission look
+						register(testswarmServerUrl, jobId, key, projectId,
+								authToken, build);
+						return jobId;
+					}
+				});
+				submissions.put(submissionKey, submission);
+				submitting = true;
+			}
+		}
+
+		if (submitting) {
+			try {
+				submission.run();
+				return result(submission);
+			} finally {
+				synchronized (this) {
+					submissions.remove(submissionKey);
+				}
+			}
+		}
+
+		int jobId = result(submission);
+		boolean held = false;
+		synchronized (this) {
+			Entry entry = find(testswarmServerUrl, jobId);
+			if (entry != null) {
+				hold(entry, build);
+				held = true;
+			}
+		}
+		if (held) {
+			save();
+			log.println("Using TestSwarm job " + jobId
+					+ ", submitted at the same time with the same suites "
+					+ "and browsers");
+			return jobId;
+		}
+		// deleted before this build got to hold it
+		return submit(testswarmServerUrl, key, reuseWindow, projectId,
+				authToken, build, addJob, log);
+	}
+
+	/**
+	 * Submits jobs for the build side by side and returns their ids in
+	 * order. If a submission fails the build polls none of the jobs, so the
+	 * jobs the other submissions got are let go of as abandoned before the
+	 * failure is rethrown.
+	 *
+	 * @param submissions
+	 *            each submits a job, held by the build, and returns its id
+	 */
+	public List<Integer> submitAll(String testswarmServerUrl,
+			List<Callable<Integer>> submissions, Run<?, ?> build,
+			PrintStream log) throws Exception {
+		List<Integer> jobIds = new ArrayList<Integer>();
+		Exception failure = null;
+		for (Future<Integer> future : TestSwarmPoller.get().invokeAll(
+				submissions)) {
+			try {
+				jobIds.add(future.get());
+			} catch (ExecutionException ex) {
+				if (failure == null)
+					failure = ex.getCause() instanceof Exception ? (Exception) ex
+							.getCause() : ex;
+			}
+		}
+		if (failure == null)
+			return jobIds;
+		for (int jobId : jobIds)
+			release(testswarmServerUrl, jobId, build, false, true, log);
+		throw failure;
+	}
+
+	/**
+	 * Lets go of a job the build no longer needs. Once no build holds it,
+	 * the job is kept for reuse if every run passed, deleted on the server
+	 * if it was abandoned, and forgotten otherwise.
+	 *
+	 * @param passed
+	 *            true if every run of the job passed
+	 * @param abandoned
+	 *            true if the build was aborted or timed out, or otherwise
+	 *            has no use for the runs the job has left
+	 */
+	public void release(String testswarmServerUrl, int jobId,
+			Run<?, ?> build, boolean passed, boolean abandoned,
+			PrintStream log) {
+		Entry orphan = null;
+		synchronized (this) {
+			Entry entry = find(testswarmServerUrl, jobId);
+			if (entry == null)
+				return;
+			entry.holders.remove(holderOf(build));
+			if (entry.holders.isEmpty() && letGo(entry, passed, abandoned))
+				orphan = entry;
+			dirty = true;
+		}
+		save();
+		if (orphan != null)
+			delete(orphan, log);
+	}
+
+	/**
+	 * Lets go of the jobs the build still holds, by the same rules as
+	 * {@link #release}. The build never waited for them, so they are not
+	 * known to have passed and are not kept for reuse.
+	 *
+	 * @param abandoned
+	 *            true if the build was aborted
+	 */
+	public void releaseAll(Run<?, ?> build, boolean abandoned,
+			PrintStream log) {
+		List<Entry> orphans = new ArrayList<Entry>();
+		synchronized (this) {
+			String holder = holderOf(build);
+			for (Entry entry : new ArrayList<Entry>(entries)) {
+				if (!entry.holders.remove(holder))
+					continue;
+				dirty = true;
+				if (entry.holders.isEmpty()
+						&& letGo(entry, false, abandoned))
+					orphans.add(entry);
+			}
+		}
+		save();
+		for (Entry orphan : orphans)
+			delete(orphan, log);
+	}
+
+	/**
+	 * Drops the holders which are no longer building and deletes the jobs
+	 * left without any. Finished jobs kept for reuse are forgotten after
+	 * {@link #REUSE_RETENTION_IN_MILLIS}.
+	 */
+	void reap(PrintStream log) {
+		List<Entry> orphans = new ArrayList<Entry>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			boolean changed = false;
+			for (Entry entry : new ArrayList<Entry>(entries)) {
+				if (entry.releasedAt > 0) {
+					if (now - entry.releasedAt > REUSE_RETENTION_IN_MILLIS) {
+						entries.remove(entry);
+						changed = true;
+					}
+					continue;
+				}
+				for (String holder : new ArrayList<String>(entry.holders)) {
+					if (!isBuilding(holder)) {
+						entry.holders.remove(holder);
+						changed = true;
+					}
+				}
+				if (entry.holders.isEmpty()) {
+					entries.remove(entry);
+					orphans.add(entry);
+				}
+			}
+			if (changed || !orphans.isEmpty())
+				dirty = true;
+		}
+		save();
+		for (Entry orphan : orphans)
+			delete(orphan, log);
+	}
+
+	/**
+	 * Deals with a job no build holds any more.
+	 *
+	 * @return true if the job is to be deleted on the server
+	 */
+	private boolean letGo(Entry entry, boolean passed, boolean abandoned) {
+		if (passed && entry.key != null) {
+			entry.releasedAt = System.currentTimeMillis();
+			return false;
+		}
+		entries.remove(entry);
+		return abandoned;
+	}
+
+	/**
+	 * @return true if the build submitted the job, rather than shares the
+	 *         job another build submitted
+	 */
+	public synchronized boolean isSubmitter(String testswarmServerUrl,
+			int jobId, Run<?, ?> build) {
+		Entry entry = find(testswarmServerUrl, jobId);
+		return entry != null && holderOf(build).equals(entry.submitter);
+	}
+
+	private Entry find(String testswarmServerUrl, int jobId) {
+		for (Entry entry : entries) {
+			if (entry.jobId == jobId
+					&& entry.testswarmServerUrl.equals(testswarmServerUrl))
+				return entry;
+		}
+		return null;
+	}
+
+	private Entry findReusable(String testswarmServerUrl, String key,
+			long reuseWindow) {
+		long now = System.currentTimeMillis();
+		for (Entry entry : entries) {
+			if (key.equals(entry.key)
+					&& entry.testswarmServerUrl.equals(testswarmServerUrl)
+					&& (entry.releasedAt == 0
+							|| now - entry.releasedAt <= reuseWindow))
+				return entry;
+		}
+		return null;
+	}
+
+	private void hold(Entry entry, Run<?, ?> build) {
+		if (!entry.holders.contains(holderOf(build)))
+			entry.holders.add(holderOf(build));
+		entry.releasedAt = 0;
+		dirty = true;
+	}
+
+	private static int result(FutureTask<Integer> submission)
+			throws Exception {
+		try {
+			return submission.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof Exception)
+				throw (Exception) ex.getCause();
+			throw ex;
+		}
+	}
+
+	private static void delete(Entry entry, PrintStream log) {
+		try {
+			new ApiRequest("wipejob", entry.projectId,
+					Secret.toString(entry.authToken))
+					.param("job_id", String.valueOf(entry.jobId))
+					.param("type", "delete").post(entry.testswarmServerUrl);
+			log.println("Deleted TestSwarm job " + entry.testswarmServerUrl
+					+ "/job/" + entry.jobId
+					+ ", its remaining runs are not needed");
+		} catch (IOException ex) {
+			log.println("Could not delete TestSwarm job "
+					+ entry.testswarmServerUrl + "/job/" + entry.jobId + ": "
+					+ ex.getMessage());
+		}
+	}
+
+	private static String holderOf(Run<?, ?> build) {
+		return build.getParent().getFullName() + "#" + build.getNumber();
+	}
+
+	private static boolean isBuilding(String holder) {
+		int hash = holder.lastIndexOf('#');
+		Job<?, ?> project = Hudson.getInstance().getItemByFullName(
+				holder.substring(0, hash), Job.class);
+		if (project == null)
+			return false;
+		Run<?, ?> build = project.getBuildByNumber(Integer.parseInt(holder
+				.substring(hash + 1)));
+		return build != null && build.isBuilding();
+	}
+
+	void load() {
+		if (!file.exists())
+			return;
+		try {
+			file.unmarshal(this);
+		} catch (IOException ex) {
+			LOGGER.log(Level.WARNING, "Could not read the TestSwarm jobs", ex);
+		}
+	}
+
+	/**
+	 * Writes the changes made so far. The file is written from a copy taken
+	 * under the lock, so builds do not wait for the disk, and changes made
+	 * while it is being written go out together with the next write.
+	 */
+	private void save() {
+		synchronized (saveLock) {
+			JobRegistry copy;
+			synchronized (this) {
+				if (!dirty)
+					return;
+				dirty = false;
+				copy = new JobRegistry(file);
+				for (Entry entry : entries)
+					copy.entries.add(new Entry(entry));
+			}
+			try {
+				file.write(copy);
+			} catch (IOException ex) {
+				LOGGER.log(Level.WARNING, "Could not save the TestSwarm jobs",
+						ex);
+			}
+		}
+	}
+
+	private static final class Entry {
+
+		private final String testswarmServerUrl;
+
+		private final int jobId;
+
+		// null if the job is not to be reused
+		private final String key;
+
+		private final String projectId;
+
+		private final Secret authToken;
+
+		// the build which submitted the job, as "project#number"
+		private final String submitter;
+
+		// the builds using the job, as "project#number"
+		private final List<String> holders = new ArrayList<String>();
+
+		// when the last build let go of the finished job, 0 while held
+		private long releasedAt;
+
+		Entry(String testswarmServerUrl, int jobId, String key,
+				String projectId, String authToken, String submitter) {
+			this.testswarmServerUrl = testswarmServerUrl;
+			this.jobId = jobId;
+			this.key = key;
+			this.projectId = projectId;
+			this.authToken = Secret.fromString(authToken);
+			this.submitter = submitter;
+		}
+
+		Entry(Entry entry) {
+			this.testswarmServerUrl = entry.testswarmServerUrl;
+			this.jobId = entry.jobId;
+			this.key = entry.key;
+			this.projectId = entry.projectId;
+			this.authToken = entry.authToken;
+			this.submitter = entry.submitter;
+			this.holders.addAll(entry.holders);
+			this.releasedAt = entry.releasedAt;
+		}
+	}
+
+	/**
+	 * Deletes the jobs of builds which no longer run, such as builds lost to
+	 * a restart or deleted while running.
+	 */
+	@Extension
+	public static final class Reaper extends AsyncPeriodicWork {
+
+		public Reaper() {
+			super("TestSwarm job reaper");
+		}
+
+		@Override
+		public long getRecurrencePeriod() {
+			return 10 * MIN;
+		}
+
+		@Override
+		protected void execute(TaskListener listener) {
+			JobRegistry.get().reap(listener.getLogger());
+		}
+	}
+
+	/**
+	 * Lets go of the jobs a build holds when it ends, whatever ended it,
+	 * deleting them if the build was aborted.
+	 */
+	@Extension
+	public static final class ReleaseOnCompletion extends RunListener<Run> {
+
+		public ReleaseOnCompletion() {
+			super(Run.class);
+		}
+
+		@Override
+		public void onCompleted(Run build, TaskListener listener) {
+			JobRegistry.get().releaseAll(build,
+					build.getResult() == Result.ABORTED, listener.getLogger());
+		}
+	}
+
+}
@@ -0,0 +1,419 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * Immutable, typed view of one <tt>action=job</tt> response: the runs of the
+ * job and the status of every run in every user agent.
+ *
+ * User agents are numbered once per snapshot and each run keeps its statuses
+ * in a byte array indexed by that number, so a job with thousands of runs
+ * costs a handful of small arrays rather than a tree of maps.
+ */
+public final class JobSnapshot {
+
+	// thread safe, shared by every poll
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private static final byte NOT_SCHEDULED = -1;
+
+	private final String[] userAgents;
+
+	private final Run[] runs;
+
+	private JobSnapshot(String[] userAgents, Run[] runs) {
+		this.userAgents = userAgents;
+		this.runs = runs;
+	}
+
+	/**
+	 * Parses an <tt>action=job</tt> response in a single streaming pass.
+	 */
+	public static JobSnapshot parse(byte[] json) throws IOException {
+		JsonParser parser = JSON_FACTORY.createJsonParser(json);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("TestSwarm job response is not an object");
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if ("job".equals(field)
+						&& parser.getCurrentToken() == JsonToken.START_OBJECT)
+					return new Reader(parser).readJob();
+				parser.skipChildren();
+			}
+			throw new IOException("TestSwarm job response has no job");
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Combines the snapshots of several jobs, such as the shards of one
+	 * build, into one snapshot holding all their runs in order.
+	 */
+	public static JobSnapshot merge(List<JobSnapshot> parts) {
+		if (parts.size() == 1)
+			return parts.get(0);
+
+		Map<String, Integer> userAgentIndex = new HashMap<String, Integer>();
+		List<String> userAgents = new ArrayList<String>();
+		int runCount = 0;
+		for (JobSnapshot part : parts) {
+			for (String userAgent : part.userAgents) {
+				if (!userAgentIndex.containsKey(userAgent)) {
+					userAgentIndex.put(userAgent, userAgents.size());
+					userAgents.add(userAgent);
+				}
+			}
+			runCount += part.runs.length;
+		}
+
+		JobSnapshot merged = new JobSnapshot(
+				userAgents.toArray(new String[userAgents.size()]),
+				new Run[runCount]);
+		int r = 0;
+		for (JobSnapshot part : parts) {
+			int[] remap = new int[part.userAgents.length];
+			for (int i = 0; i < remap.length; i++)
+				remap[i] = userAgentIndex.get(part.userAgents[i]);
+
+			for (Run run : part.runs) {
+				byte[] statuses = new byte[userAgents.size()];
+				Arrays.fill(statuses, NOT_SCHEDULED);
+				for (int i = 0; i < run.statuses.length; i++)
+					statuses[remap[i]] = run.statuses[i];
+				merged.runs[r++] = merged.new Run(run.id, run.name, run.url,
+						statuses);
+			}
+		}
+		return merged;
+	}
+
+	public int getUserAgentCount() {
+		return userAgents.length;
+	}
+
+	public String getUserAgent(int index) {
+		return userAgents[index];
+	}
+
+	public int getRunCount() {
+		return runs.length;
+	}
+
+	public Run getRun(int index) {
+		return runs[index];
+	}
+
+	public List<Run> getRuns() {
+		return Collections.unmodifiableList(Arrays.asList(runs));
+	}
+
+	/**
+	 * Copy of this snapshot in which the given runs are back in the queue in
+	 * the given user agents, for runs which are being retried.
+	 *
+	 * @param requeued
+	 *            pairs of run and user agent index
+	 */
+	public JobSnapshot requeue(List<int[]> requeued) {
+		JobSnapshot copy = new JobSnapshot(userAgents, new Run[runs.length]);
+		byte[][] statuses = new byte[runs.length][];
+		for (int i = 0; i < runs.length; i++)
+			statuses[i] = runs[i].statuses;
+		for (int[] cell : requeued) {
+			int run = cell[0];
+			if (statuses[run] == runs[run].statuses)
+				statuses[run] = statuses[run].clone();
+			statuses[run][cell[1]] = (byte) RunStatus.NEW.ordinal();
+		}
+		for (int i = 0; i < runs.length; i++)
+			copy.runs[i] = copy.new Run(runs[i].id, runs[i].name,
+					runs[i].url, statuses[i]);
+		return copy;
+	}
+
+	/**
+	 * @return true if every run has the same status in every user agent as
+	 *         in the other snapshot
+	 */
+	public boolean hasSameStatuses(JobSnapshot other) {
+		if (other == null || other.runs.length != runs.length
+				|| !Arrays.equals(other.userAgents, userAgents))
+			return false;
+		for (int i = 0; i < runs.length; i++) {
+			if (!Arrays.equals(runs[i].statuses, other.runs[i].statuses))
+				return false;
+		}
+		return true;
+	}
+
+	public final class Run {
+
+		private final String id;
+
+		private final String name;
+
+		private final String url;
+
+		private final byte[] statuses;
+
+		private Run(String id, String name, String url, byte[] statuses) {
+			this.id = id;
+			this.name = name;
+			this.url = url;
+			this.statuses = statuses;
+		}
+
+		/**
+		 * @return the TestSwarm id of the run, or null if the run does not
+		 *         come from a TestSwarm response
+		 */
+		public String getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		/**
+		 * @return the status in the given user agent, or null if the run is
+		 *         not scheduled there
+		 */
+		public RunStatus getStatus(int userAgent) {
+			if (userAgent >= statuses.length
+					|| statuses[userAgent] == NOT_SCHEDULED)
+				return null;
+			return RunStatus.valueOf(statuses[userAgent]);
+		}
+
+		/**
+		 * Adds the number of user agents in each status to
+		 * <tt>counts</tt>, indexed by {@link RunStatus#ordinal()}.
+		 */
+		public void countStatuses(int[] counts) {
+			for (byte status : statuses) {
+				if (status != NOT_SCHEDULED)
+					counts[status]++;
+			}
+		}
+
+		/**
+		 * @return the user agents in which the run has the given status
+		 */
+		public List<String> getUserAgents(RunStatus status) {
+			List<String> result = new ArrayList<String>();
+			for (int i = 0; i < statuses.length; i++) {
+				if (statuses[i] == status.ordinal())
+					result.add(userAgents[i]);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Assembles a snapshot from results recorded by an earlier build rather
+	 * than from a TestSwarm response.
+	 */
+	public static final class Builder {
+
+		private final Map<String, Integer> userAgentIndex = new HashMap<String, Integer>();
+
+		private final List<String> userAgents = new ArrayList<String>();
+
+		private final List<ParsedRun> runs = new ArrayList<ParsedRun>();
+
+		/**
+		 * Adds a run with the given status in each of the user agents.
+		 */
+		public Builder addRun(String name, String url, String[] runUserAgents,
+				RunStatus status) {
+			byte[] statuses = new byte[0];
+			for (String userAgent : runUserAgents) {
+				Integer index = userAgentIndex.get(userAgent);
+				if (index == null) {
+					index = userAgents.size();
+					userAgents.add(userAgent);
+					userAgentIndex.put(userAgent, index);
+				}
+				if (index >= statuses.length) {
+					int oldLength = statuses.length;
+					statuses = Arrays.copyOf(statuses, index + 1);
+					Arrays.fill(statuses, oldLength, statuses.length,
+							NOT_SCHEDULED);
+				}
+				statuses[index] = (byte) status.ordinal();
+			}
+			runs.add(new ParsedRun(null, name, url, statuses));
+			return this;
+		}
+
+		public JobSnapshot build() {
+			JobSnapshot snapshot = new JobSnapshot(
+					userAgents.toArray(new String[userAgents.size()]),
+					new Run[runs.size()]);
+			for (int i = 0; i < runs.size(); i++) {
+				ParsedRun run = runs.get(i);
+				snapshot.runs[i] = snapshot.new Run(run.id, run.name, run.url,
+						run.statuses);
+			}
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Streaming reader for the <tt>job</tt> object. Statuses of a run are
+	 * collected in a scratch array sized to the user agents seen so far and
+	 * copied out once the run is complete.
+	 */
+	private static final class Reader {
+
+		private final JsonParser parser;
+
+		private final Map<String, Integer> userAgentIndex = new HashMap<String, Integer>();
+
+		private final List<String> userAgents = new ArrayList<String>();
+
+		private final List<ParsedRun> runs = new ArrayList<ParsedRun>();
+
+		private byte[] scratch = new byte[16];
+
+		Reader(JsonParser parser) {
+			this.parser = parser;
+		}
+
+		JobSnapshot readJob() throws IOException {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if ("runs".equals(field)
+						&& parser.getCurrentToken() == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT)
+						readRun();
+				} else {
+					parser.skipChildren();
+				}
+			}
+
+			JobSnapshot snapshot = new JobSnapshot(
+					userAgents.toArray(new String[userAgents.size()]),
+					new Run[runs.size()]);
+			for (int i = 0; i < runs.size(); i++) {
+				ParsedRun run = runs.get(i);
+				snapshot.runs[i] = snapshot.new Run(run.id, run.name, run.url,
+						run.statuses);
+			}
+			return snapshot;
+		}
+
+		private void readRun() throws IOException {
+			String id = null;
+			String name = null;
+			String url = null;
+			Arrays.fill(scratch, NOT_SCHEDULED);
+			int width = 0;
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if ("info".equals(field) && value == JsonToken.START_OBJECT) {
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String infoField = parser.getCurrentName();
+						parser.nextToken();
+						if ("id".equals(infoField))
+							id = parser.getText();
+						else if ("name".equals(infoField))
+							name = parser.getText();
+						else if ("url".equals(infoField))
+							url = parser.getText();
+						else
+							parser.skipChildren();
+					}
+				} else if ("uaRuns".equals(field)
+						&& value == JsonToken.START_OBJECT) {
+					// one object per user agent
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						int ua = indexOf(parser.getCurrentName());
+						parser.nextToken();
+						scratch[ua] = (byte) readUaRunStatus().ordinal();
+						width = Math.max(width, ua + 1);
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+
+			runs.add(new ParsedRun(id, name, url, Arrays.copyOf(scratch,
+					width)));
+		}
+
+		private RunStatus readUaRunStatus() throws IOException {
+			RunStatus status = RunStatus.UNKNOWN;
+			if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+				parser.skipChildren();
+				return status;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if ("runStatus".equals(field))
+					status = RunStatus.fromApiName(parser.getText());
+				else
+					parser.skipChildren();
+			}
+			return status;
+		}
+
+		private int indexOf(String userAgent) {
+			Integer index = userAgentIndex.get(userAgent);
+			if (index == null) {
+				index = userAgents.size();
+				userAgents.add(userAgent);
+				userAgentIndex.put(userAgent, index);
+				if (index >= scratch.length) {
+					int oldLength = scratch.length;
+					scratch = Arrays.copyOf(scratch, oldLength * 2);
+					Arrays.fill(scratch, oldLength, scratch.length,
+							NOT_SCHEDULED);
+				}
+			}
+			return index;
+		}
+	}
+
+	private static final class ParsedRun {
+
+		final String id;
+
+		final String name;
+
+		final String url;
+
+		final byte[] statuses;
+
+		ParsedRun(String id, String name, String url, byte[] statuses) {
+			this.id = id;
+			this.name = name;
+			this.url = url;
+			this.statuses = statuses;
+		}
+	}
+
+}
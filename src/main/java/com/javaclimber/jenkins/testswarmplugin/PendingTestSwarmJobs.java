@@ -0,0 +1,65 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import hudson.model.TaskListener;
+
+/**
+ * TestSwarm jobs a build submitted without waiting for them, while the
+ * shared poller keeps polling them. Kept by the
+ * {@link TestSwarmAwaitRecorder} until it waits for them, or cancelled and
+ * deleted when the build ends without one.
+ *
+ * Held in memory only, for as long as the build runs; the build itself
+ * never refers to it, so it is not saved with the build.
+ */
+public class PendingTestSwarmJobs {
+
+	private final TestSwarmBuilder builder;
+
+	private final TestSwarmExecution execution;
+
+	private final int minimumPassing;
+
+	private final long waitStart;
+
+	public PendingTestSwarmJobs(TestSwarmBuilder builder,
+			TestSwarmExecution execution, int minimumPassing, long waitStart) {
+		this.builder = builder;
+		this.execution = execution;
+		this.minimumPassing = minimumPassing;
+		this.waitStart = waitStart;
+	}
+
+	public TestSwarmExecution getExecution() {
+		return execution;
+	}
+
+	/**
+	 * Waits for the jobs and records their outcome with the build.
+	 *
+	 * @return true if the jobs passed
+	 */
+	boolean await() {
+		return builder.awaitSubmitted(execution, minimumPassing, waitStart);
+	}
+
+	/**
+	 * Stops polling the jobs, which nobody waits for, and lets go of them as
+	 * abandoned so they are deleted on the server.
+	 */
+	void cancel(TaskListener listener) {
+		TestSwarmJobPoll poll = execution.getPoll();
+		if (poll != null)
+			poll.cancel();
+		for (String jobUrl : execution.getJobUrls())
+			TestSwarmHttpClient.get().forget(jobUrl);
+		listener.getLogger().println(
+				"Nothing waited for the TestSwarm jobs "
+						+ execution.getJobFriendlyUrls()
+						+ ", add the Await TestSwarm Results step to collect them");
+		for (int jobId : execution.getJobIds())
+			JobRegistry.get().release(execution.getTestswarmServerUrl(),
+					jobId, execution.getBuild(), false, true,
+					listener.getLogger());
+	}
+
+}
@@ -0,0 +1,78 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.util.Random;
+
+/**
+ * Decides when a {@link TestSwarmJobPoll} fetches its job next.
+ *
+ * Polls come quickly while runs are changing state and back off
+ * exponentially, up to the configured polling interval, while nothing moves.
+ * Every delay is spread by a random jitter so builds started together do not
+ * hit the TestSwarm server in lock step. Until the earliest time the job
+ * finished in recent builds, polls are spaced at the full interval since they
+ * cannot show completion yet.
+ */
+public class PollingPolicy {
+
+	static final long MIN_INTERVAL_IN_MILLIS = 2 * 1000;
+
+	private static final double JITTER = 0.2;
+
+	private static final Random RANDOM = new Random();
+
+	private final long minIntervalInMillis;
+
+	private final long maxIntervalInMillis;
+
+	private final long earliestCompletion;
+
+	private long intervalInMillis;
+
+	/**
+	 * @param maxIntervalInMillis
+	 *            the configured polling interval, used as a cap
+	 * @param earliestCompletion
+	 *            the time before which the job is not expected to finish, or
+	 *            0 if there is no history to go by
+	 */
+	public PollingPolicy(long maxIntervalInMillis, long earliestCompletion) {
+		this.maxIntervalInMillis = Math.max(maxIntervalInMillis, 1);
+		this.minIntervalInMillis = Math.min(MIN_INTERVAL_IN_MILLIS,
+				this.maxIntervalInMillis);
+		this.earliestCompletion = earliestCompletion;
+		this.intervalInMillis = minIntervalInMillis;
+	}
+
+	/**
+	 * Delay before the first poll.
+	 */
+	public synchronized long firstDelay(long now) {
+		return jitter(now < earliestCompletion ? maxIntervalInMillis
+				: minIntervalInMillis);
+	}
+
+	/**
+	 * Delay before the next poll.
+	 *
+	 * @param changed
+	 *            whether the last poll saw any run change state
+	 */
+	public synchronized long nextDelay(boolean changed, long now) {
+		if (changed)
+			intervalInMillis = minIntervalInMillis;
+		else
+			intervalInMillis = Math.min(intervalInMillis * 2,
+					maxIntervalInMillis);
+
+		if (now < earliestCompletion)
+			return jitter(maxIntervalInMillis);
+		return jitter(intervalInMillis);
+	}
+
+	private long jitter(long delay) {
+		double factor = 1 + JITTER * (2 * RANDOM.nextDouble() - 1);
+		return Math.max(1,
+				Math.min(Math.round(delay * factor), maxIntervalInMillis));
+	}
+
+}
@@ -0,0 +1,90 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact build log output for a polled job. Instead of printing every run
+ * on every poll, only runs that reach a result in a user agent (or are put
+ * back in the queue) are logged, plus a one line summary at most once per
+ * {@link #SUMMARY_INTERVAL_IN_MILLIS}.
+ */
+public class ProgressReporter {
+
+	static final long SUMMARY_INTERVAL_IN_MILLIS = 60 * 1000;
+
+	private final PrintStream log;
+
+	private JobSnapshot last;
+
+	private long lastSummary;
+
+	private int polls;
+
+	public ProgressReporter(PrintStream log) {
+		this.log = log;
+	}
+
+	/**
+	 * Logs what changed since the previous snapshot, and the summary if it
+	 * is due.
+	 */
+	public void report(JobSnapshot snapshot, long now) {
+		polls++;
+		if (last != null && snapshot != last)
+			logTransitions(last, snapshot);
+		last = snapshot;
+
+		if (now - lastSummary >= SUMMARY_INTERVAL_IN_MILLIS) {
+			summary(snapshot);
+			lastSummary = now;
+		}
+	}
+
+	/**
+	 * Logs the one line summary of the snapshot.
+	 */
+	public void summary(JobSnapshot snapshot) {
+		int[] counts = new int[RunStatus.count()];
+		for (JobSnapshot.Run run : snapshot.getRuns())
+			run.countStatuses(counts);
+
+		log.println("TestSwarm progress after " + polls + " polls: "
+				+ counts[RunStatus.PASSED.ordinal()] + " passed, "
+				+ counts[RunStatus.FAILED.ordinal()] + " failed, "
+				+ counts[RunStatus.ERROR.ordinal()] + " errors, "
+				+ counts[RunStatus.TIMEOUT.ordinal()] + " timed out, "
+				+ counts[RunStatus.PROGRESS.ordinal()] + " in progress, "
+				+ counts[RunStatus.NEW.ordinal()] + " new");
+	}
+
+	private void logTransitions(JobSnapshot before, JobSnapshot after) {
+		Map<String, Integer> userAgentsBefore = new HashMap<String, Integer>();
+		for (int i = 0; i < before.getUserAgentCount(); i++)
+			userAgentsBefore.put(before.getUserAgent(i), i);
+
+		// runs keep their order within a job
+		int runs = Math.min(before.getRunCount(), after.getRunCount());
+		for (int r = 0; r < runs; r++) {
+			JobSnapshot.Run runBefore = before.getRun(r);
+			JobSnapshot.Run runAfter = after.getRun(r);
+			for (int ua = 0; ua < after.getUserAgentCount(); ua++) {
+				RunStatus status = runAfter.getStatus(ua);
+				Integer uaBefore = userAgentsBefore.get(after
+						.getUserAgent(ua));
+				if (status == null || uaBefore == null)
+					continue;
+				RunStatus previous = runBefore.getStatus(uaBefore);
+				if (previous == null || previous == status)
+					continue;
+				if (status.isFinished() || previous.isFinished())
+					log.println(runAfter.getName() + " ["
+							+ after.getUserAgent(ua) + "]: "
+							+ previous.getApiName() + " -> "
+							+ status.getApiName());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,419 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the final outcome matrix of every build (run x user agent to status
+ * and duration) in a small binary file in the build directory, and one
+ * small record per build in an index file in the project directory.
+ * History queries walk the index from the newest build backwards and only
+ * open the result files they need, instead of parsing TAP reports or build
+ * logs.
+ *
+ * Each index record is framed with its length and a CRC-32, so a record cut
+ * short or garbled by a crash is skipped without misreading the ones after
+ * it. When a build is added, the index is rewritten without such records,
+ * the records of deleted builds and all but the last {@link #RETAINED_BUILDS}
+ * builds whenever any of those are found.
+ */
+public final class ResultStore {
+
+	static final String RESULTS_FILE = "testswarm-results.bin";
+
+	static final String INDEX_FILE = "testswarm-results.idx";
+
+	private static final int MAGIC = 0x54535752;
+
+	private static final int VERSION = 1;
+
+	// builds kept in the index, well over what the history queries ask for
+	static final int RETAINED_BUILDS = 100;
+
+	// the numbers of an index record and a path of up to 64k bytes
+	private static final int MAX_RECORD_LENGTH = 64 * 1024 + 64;
+
+	private ResultStore() {
+	}
+
+	/**
+	 * Writes the outcome of the build and adds it to the project index.
+	 *
+	 * @param timings
+	 *            durations of the runs, may be null
+	 */
+	public static void save(Run<?, ?> build, JobSnapshot snapshot,
+			RunTimings timings, int jobStatus) throws IOException {
+		File resultsFile = new File(build.getRootDir(), RESULTS_FILE);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(resultsFile)));
+		int failed = 0;
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeInt(build.getNumber());
+			out.writeLong(build.getTimeInMillis());
+			out.writeByte(jobStatus);
+
+			out.writeInt(snapshot.getUserAgentCount());
+			for (int ua = 0; ua < snapshot.getUserAgentCount(); ua++)
+				out.writeUTF(snapshot.getUserAgent(ua));
+
+			out.writeInt(snapshot.getRunCount());
+			for (int r = 0; r < snapshot.getRunCount(); r++) {
+				JobSnapshot.Run run = snapshot.getRun(r);
+				out.writeUTF(run.getName() == null ? "" : run.getName());
+				out.writeUTF(run.getUrl() == null ? "" : run.getUrl());
+				for (int ua = 0; ua < snapshot.getUserAgentCount(); ua++) {
+					RunStatus status = run.getStatus(ua);
+					out.writeByte(status == null ? -1 : status.ordinal());
+					long duration = timings == null ? -1 : timings
+							.getDuration(r, snapshot.getUserAgent(ua));
+					out.writeInt((int) Math.min(duration, Integer.MAX_VALUE));
+					if (status == RunStatus.FAILED || status == RunStatus.ERROR
+							|| status == RunStatus.TIMEOUT)
+						failed++;
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		addToIndex(build.getParent().getRootDir(), new IndexEntry(build
+				.getNumber(), build.getTimeInMillis(), jobStatus, snapshot
+				.getRunCount(), failed, resultsFile));
+	}
+
+	/**
+	 * Appends the entry to the index in the project directory, or rewrites
+	 * the index with it if the index has records to drop.
+	 */
+	static void addToIndex(File projectDir, IndexEntry entry)
+			throws IOException {
+		File indexFile = new File(projectDir, INDEX_FILE);
+		synchronized (ResultStore.class) {
+			List<IndexEntry> entries = new ArrayList<IndexEntry>();
+			boolean damaged = scan(indexFile, projectDir, entries);
+
+			boolean prune = damaged
+					|| entries.size() >= RETAINED_BUILDS + RETAINED_BUILDS / 2;
+			for (IndexEntry existing : entries)
+				prune |= !existing.resultsFile.exists();
+
+			if (!prune) {
+				// the record is appended with a single write
+				FileOutputStream index = new FileOutputStream(indexFile, true);
+				try {
+					index.write(record(entry, projectDir));
+				} finally {
+					index.close();
+				}
+				return;
+			}
+
+			List<IndexEntry> retained = new ArrayList<IndexEntry>();
+			for (IndexEntry existing : entries) {
+				if (existing.resultsFile.exists())
+					retained.add(existing);
+			}
+			retained = retained.subList(Math.max(retained.size()
+					- RETAINED_BUILDS + 1, 0), retained.size());
+
+			File tempFile = new File(projectDir, INDEX_FILE + ".tmp");
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(
+					tempFile));
+			try {
+				for (IndexEntry existing : retained)
+					out.write(record(existing, projectDir));
+				out.write(record(entry, projectDir));
+			} finally {
+				out.close();
+			}
+			if (!tempFile.renameTo(indexFile)
+					&& !(indexFile.delete() && tempFile.renameTo(indexFile)))
+				throw new IOException("Could not replace " + indexFile);
+		}
+	}
+
+	/**
+	 * @return the stored outcome of the build, or null if it has none
+	 */
+	public static StoredResults load(Run<?, ?> build) throws IOException {
+		return read(new File(build.getRootDir(), RESULTS_FILE));
+	}
+
+	/**
+	 * @return the index entries of the project, newest build first
+	 */
+	public static List<IndexEntry> readIndex(Job<?, ?> project)
+			throws IOException {
+		List<IndexEntry> entries = new ArrayList<IndexEntry>();
+		scan(new File(project.getRootDir(), INDEX_FILE), project.getRootDir(),
+				entries);
+		Collections.reverse(entries);
+		return entries;
+	}
+
+	/**
+	 * Reads the intact records of the index, oldest first.
+	 *
+	 * @return true if records were skipped or the index ends in a record
+	 *         cut short
+	 */
+	static boolean scan(File indexFile, File projectDir,
+			List<IndexEntry> entries) throws IOException {
+		if (!indexFile.exists())
+			return false;
+
+		long fileLength = indexFile.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(indexFile)));
+		boolean damaged = false;
+		long offset = 0;
+		try {
+			while (true) {
+				int length = in.readInt();
+				if (length < 0 || length > MAX_RECORD_LENGTH)
+					// not a record boundary, nothing after it can be trusted
+					return true;
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				int crc = in.readInt();
+				offset += length + 8;
+				if (crc != checksum(payload)) {
+					damaged = true;
+					continue;
+				}
+				DataInputStream record = new DataInputStream(
+						new ByteArrayInputStream(payload));
+				entries.add(new IndexEntry(record.readInt(), record
+						.readLong(), record.readByte(), record.readInt(),
+						record.readInt(), new File(projectDir, record
+								.readUTF())));
+			}
+		} catch (EOFException ex) {
+			// end of the index, anything after the last whole record was cut
+			// short by a crash or is still being appended
+			return damaged || offset != fileLength;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] record(IndexEntry entry, File projectDir)
+			throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(payload);
+		out.writeInt(entry.buildNumber);
+		out.writeLong(entry.timestamp);
+		out.writeByte(entry.jobStatus);
+		out.writeInt(entry.runCount);
+		out.writeInt(entry.failedCount);
+		out.writeUTF(relativePath(projectDir, entry.resultsFile));
+
+		ByteArrayOutputStream record = new ByteArrayOutputStream(
+				payload.size() + 8);
+		out = new DataOutputStream(record);
+		out.writeInt(payload.size());
+		payload.writeTo(out);
+		out.writeInt(checksum(payload.toByteArray()));
+		return record.toByteArray();
+	}
+
+	private static int checksum(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * @return the stored outcomes of up to <tt>maxBuilds</tt> of the most
+	 *         recent builds of the project, newest first; deleted builds are
+	 *         skipped
+	 */
+	public static List<StoredResults> history(Job<?, ?> project, int maxBuilds)
+			throws IOException {
+		List<StoredResults> history = new ArrayList<StoredResults>();
+		for (IndexEntry entry : readIndex(project)) {
+			if (history.size() >= maxBuilds)
+				break;
+			StoredResults results = read(entry.resultsFile);
+			if (results != null)
+				history.add(results);
+		}
+		return history;
+	}
+
+	/**
+	 * @return for each user agent the suite failed, errored or timed out in
+	 *         within the last <tt>maxBuilds</tt> builds, how many builds it
+	 *         did so in
+	 */
+	public static Map<String, Integer> failingUserAgents(Job<?, ?> project,
+			String suiteName, int maxBuilds) throws IOException {
+		Map<String, Integer> failing = new LinkedHashMap<String, Integer>();
+		for (StoredResults results : history(project, maxBuilds)) {
+			int run = results.indexOfRun(suiteName);
+			if (run < 0)
+				continue;
+			for (int ua = 0; ua < results.getUserAgentCount(); ua++) {
+				RunStatus status = results.getStatus(run, ua);
+				if (status == RunStatus.FAILED || status == RunStatus.ERROR
+						|| status == RunStatus.TIMEOUT) {
+					Integer count = failing.get(results.getUserAgent(ua));
+					failing.put(results.getUserAgent(ua), count == null ? 1
+							: count + 1);
+				}
+			}
+		}
+		return failing;
+	}
+
+	/**
+	 * @return for each user agent of the last <tt>maxBuilds</tt> builds, how
+	 *         long its runs took on average in milliseconds; user agents
+	 *         without a known duration are left out
+	 */
+	public static Map<String, Long> averageDurations(Job<?, ?> project,
+			int maxBuilds) throws IOException {
+		Map<String, long[]> totals = new LinkedHashMap<String, long[]>();
+		for (StoredResults results : history(project, maxBuilds)) {
+			for (int ua = 0; ua < results.getUserAgentCount(); ua++) {
+				for (int run = 0; run < results.getRunCount(); run++) {
+					int duration = results.getDuration(run, ua);
+					if (duration < 0)
+						continue;
+					long[] total = totals.get(results.getUserAgent(ua));
+					if (total == null) {
+						total = new long[2];
+						totals.put(results.getUserAgent(ua), total);
+					}
+					total[0] += duration;
+					total[1]++;
+				}
+			}
+		}
+		Map<String, Long> averages = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, long[]> total : totals.entrySet())
+			averages.put(total.getKey(), total.getValue()[0]
+					/ total.getValue()[1]);
+		return averages;
+	}
+
+	private static StoredResults read(File resultsFile) throws IOException {
+		if (!resultsFile.exists())
+			return null;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(resultsFile)));
+		try {
+			if (in.readInt() != MAGIC || in.readByte() != VERSION)
+				throw new IOException("Unknown TestSwarm result format in "
+						+ resultsFile);
+			int buildNumber = in.readInt();
+			long timestamp = in.readLong();
+			int jobStatus = in.readByte();
+
+			String[] userAgents = new String[in.readInt()];
+			for (int ua = 0; ua < userAgents.length; ua++)
+				userAgents[ua] = in.readUTF();
+
+			int runCount = in.readInt();
+			String[] runNames = new String[runCount];
+			String[] runUrls = new String[runCount];
+			byte[][] statuses = new byte[runCount][userAgents.length];
+			int[][] durations = new int[runCount][userAgents.length];
+			for (int r = 0; r < runCount; r++) {
+				runNames[r] = in.readUTF();
+				runUrls[r] = in.readUTF();
+				for (int ua = 0; ua < userAgents.length; ua++) {
+					statuses[r][ua] = in.readByte();
+					durations[r][ua] = in.readInt();
+				}
+			}
+			return new StoredResults(buildNumber, timestamp, jobStatus,
+					userAgents, runNames, runUrls, statuses, durations);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String relativePath(File dir, File file) {
+		String dirPath = dir.getAbsolutePath() + File.separator;
+		String filePath = file.getAbsolutePath();
+		return filePath.startsWith(dirPath) ? filePath.substring(dirPath
+				.length()) : filePath;
+	}
+
+	/**
+	 * One build in the project index.
+	 */
+	public static final class IndexEntry {
+
+		private final int buildNumber;
+
+		private final long timestamp;
+
+		private final int jobStatus;
+
+		private final int runCount;
+
+		private final int failedCount;
+
+		private final File resultsFile;
+
+		IndexEntry(int buildNumber, long timestamp, int jobStatus,
+				int runCount, int failedCount, File resultsFile) {
+			this.buildNumber = buildNumber;
+			this.timestamp = timestamp;
+			this.jobStatus = jobStatus;
+			this.runCount = runCount;
+			this.failedCount = failedCount;
+			this.resultsFile = resultsFile;
+		}
+
+		public int getBuildNumber() {
+			return buildNumber;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public int getJobStatus() {
+			return jobStatus;
+		}
+
+		public int getRunCount() {
+			return runCount;
+		}
+
+		/**
+		 * @return how many run and user agent pairs failed, errored or
+		 *         timed out
+		 */
+		public int getFailedCount() {
+			return failedCount;
+		}
+	}
+
+}
@@ -0,0 +1,159 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Retries a run in a user agent when it ends in one of the configured
+ * statuses, up to a number of times per run and user agent, while the rest
+ * of the job keeps going. The run is wiped on the server so TestSwarm hands
+ * it out again, and is treated as queued until its next result shows up, so
+ * only the latest attempt counts.
+ *
+ * Only the jobs the build submitted itself are retried. A job shared with
+ * other builds, see {@link JobRegistry#submit}, is left to the build which
+ * submitted it, so the builds do not wipe the same runs over each other.
+ *
+ * Used by a single {@link TestSwarmJobPoll}, whose polls never overlap.
+ */
+public class RetryPolicy {
+
+	private final int maxRetries;
+
+	private final Set<RunStatus> statuses;
+
+	private final boolean[] retriedJobs;
+
+	private final RunWiper wiper;
+
+	// retries so far per job, run and user agent
+	private final Map<String, Integer> retries = new HashMap<String, Integer>();
+
+	/**
+	 * @param retriedJobs
+	 *            by index among the jobs of the build, true for the jobs the
+	 *            build submitted and may retry runs of
+	 */
+	public RetryPolicy(int maxRetries, Set<RunStatus> statuses,
+			boolean[] retriedJobs, RunWiper wiper) {
+		this.maxRetries = maxRetries;
+		this.statuses = statuses;
+		this.retriedJobs = retriedJobs.clone();
+		this.wiper = wiper;
+	}
+
+	/**
+	 * Parses a list of TestSwarm status names such as
+	 * <tt>error, timeout</tt>.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a name is not a status a run can end in
+	 */
+	public static Set<RunStatus> parseStatuses(String names) {
+		Set<RunStatus> statuses = EnumSet.noneOf(RunStatus.class);
+		for (String name : names.trim().split("[,\\s]+")) {
+			if (name.length() == 0)
+				continue;
+			RunStatus status = RunStatus.fromApiName(name.toLowerCase());
+			if (!status.isFinished() || status == RunStatus.PASSED
+					|| status == RunStatus.UNKNOWN)
+				throw new IllegalArgumentException("Cannot retry runs with status "
+						+ name);
+			statuses.add(status);
+		}
+		return statuses;
+	}
+
+	/**
+	 * Wipes the runs of one job which are due for a retry.
+	 *
+	 * @param job
+	 *            index of the job among the jobs of the build
+	 * @return the snapshot with the retried runs back in the queue
+	 */
+	public JobSnapshot apply(int job, JobSnapshot snapshot, PrintStream log) {
+		if (!retriedJobs[job])
+			return snapshot;
+		List<int[]> requeued = new ArrayList<int[]>();
+		for (int r = 0; r < snapshot.getRunCount(); r++) {
+			JobSnapshot.Run run = snapshot.getRun(r);
+			if (run.getId() == null)
+				continue;
+			for (int ua = 0; ua < snapshot.getUserAgentCount(); ua++) {
+				RunStatus status = run.getStatus(ua);
+				if (status == null || !statuses.contains(status))
+					continue;
+
+				String userAgent = snapshot.getUserAgent(ua);
+				String key = job + "/" + run.getId() + "/" + userAgent;
+				Integer count = retries.get(key);
+				int attempt = count == null ? 1 : count + 1;
+				if (attempt > maxRetries)
+					continue;
+				retries.put(key, attempt);
+
+				try {
+					wiper.wipe(job, run.getId(), userAgent);
+				} catch (IOException ex) {
+					log.println("Could not retry " + run.getName() + " ["
+							+ userAgent + "]: " + ex.getMessage());
+					continue;
+				}
+				log.println("Retrying " + run.getName() + " [" + userAgent
+						+ "] after " + status.getApiName() + " (retry "
+						+ attempt + " of " + maxRetries + ")");
+				requeued.add(new int[] { r, ua });
+			}
+		}
+		return requeued.isEmpty() ? snapshot : snapshot.requeue(requeued);
+	}
+
+	/**
+	 * Resets a run in a user agent on the TestSwarm server.
+	 */
+	public interface RunWiper {
+		void wipe(int job, String runId, String userAgent) throws IOException;
+	}
+
+	/**
+	 * Wipes runs through the <tt>wiperun</tt> API so TestSwarm hands them
+	 * out again.
+	 */
+	public static final class ApiRunWiper implements RunWiper {
+
+		private final String testswarmServerUrl;
+
+		private final int[] jobIds;
+
+		private final String projectId;
+
+		private final String authToken;
+
+		/**
+		 * @param jobIds
+		 *            the ids of the jobs of the build, by index
+		 */
+		public ApiRunWiper(String testswarmServerUrl, int[] jobIds,
+				String projectId, String authToken) {
+			this.testswarmServerUrl = testswarmServerUrl;
+			this.jobIds = jobIds.clone();
+			this.projectId = projectId;
+			this.authToken = authToken;
+		}
+
+		public void wipe(int job, String runId, String userAgent)
+				throws IOException {
+			new ApiRequest("wiperun", projectId, authToken)
+					.param("job_id", String.valueOf(jobIds[job]))
+					.param("run_id", runId).param("useragent_id", userAgent)
+					.param("type", "specific").post(testswarmServerUrl);
+		}
+	}
+
+}
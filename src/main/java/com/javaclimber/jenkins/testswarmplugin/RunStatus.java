@@ -0,0 +1,56 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+/**
+ * The <tt>runStatus</tt> values TestSwarm reports for a run in one user
+ * agent.
+ */
+public enum RunStatus {
+
+	NEW("new"), PROGRESS("progress"), PASSED("passed"), FAILED("failed"), ERROR(
+			"error"), TIMEOUT("timeout"), UNKNOWN("unknown");
+
+	private static final RunStatus[] VALUES = values();
+
+	private final String apiName;
+
+	private RunStatus(String apiName) {
+		this.apiName = apiName;
+	}
+
+	public String getApiName() {
+		return apiName;
+	}
+
+	/**
+	 * Maps the TestSwarm API name of a status, without allocating.
+	 */
+	public static RunStatus fromApiName(String name) {
+		if (name == null)
+			return UNKNOWN;
+		for (RunStatus status : VALUES) {
+			if (status.apiName.equals(name))
+				return status;
+		}
+		// older TestSwarm releases spell it this way
+		if ("timedout".equals(name))
+			return TIMEOUT;
+		return UNKNOWN;
+	}
+
+	/**
+	 * @return true once the run has a result in the user agent, that is it
+	 *         is neither queued nor running
+	 */
+	public boolean isFinished() {
+		return this != NEW && this != PROGRESS;
+	}
+
+	public static RunStatus valueOf(int ordinal) {
+		return VALUES[ordinal];
+	}
+
+	public static int count() {
+		return VALUES.length;
+	}
+
+}
@@ -0,0 +1,150 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * When each run was first seen running and first seen finished in each user
+ * agent, as observed by the polls of one build. TestSwarm does not report
+ * run durations in the job API, so they are only as precise as the polling
+ * interval. A run which went from queued to finished between two polls is
+ * taken to have started when the earlier poll was made, so its duration is
+ * an upper bound.
+ */
+public class RunTimings {
+
+	private final Map<String, Integer> userAgentIndex = new HashMap<String, Integer>();
+
+	private final List<String> userAgents = new ArrayList<String>();
+
+	// per run and user agent, 0 while not seen yet
+	private long[][] started = new long[0][];
+
+	private long[][] finished = new long[0][];
+
+	/**
+	 * Records the runs which started or finished since the previous
+	 * snapshot. A run put back in the queue starts over.
+	 *
+	 * @param previousPoll
+	 *            when the poll before the one the snapshot is from was
+	 *            made, or 0 if there was none
+	 */
+	public synchronized void update(JobSnapshot snapshot, long now,
+			long previousPoll) {
+		if (started.length < snapshot.getRunCount()) {
+			started = Arrays.copyOf(started, snapshot.getRunCount());
+			finished = Arrays.copyOf(finished, snapshot.getRunCount());
+		}
+
+		int[] remap = new int[snapshot.getUserAgentCount()];
+		for (int i = 0; i < remap.length; i++)
+			remap[i] = indexOf(snapshot.getUserAgent(i));
+
+		for (int r = 0; r < snapshot.getRunCount(); r++) {
+			JobSnapshot.Run run = snapshot.getRun(r);
+			for (int i = 0; i < remap.length; i++) {
+				RunStatus status = run.getStatus(i);
+				if (status == null)
+					continue;
+				int ua = remap[i];
+				if (started[r] == null || started[r].length <= ua) {
+					started[r] = grow(started[r], userAgents.size());
+					finished[r] = grow(finished[r], userAgents.size());
+				}
+				if (status == RunStatus.NEW) {
+					started[r][ua] = 0;
+					finished[r][ua] = 0;
+				} else if (status == RunStatus.PROGRESS) {
+					if (started[r][ua] == 0)
+						started[r][ua] = now;
+					finished[r][ua] = 0;
+				} else if (finished[r][ua] == 0) {
+					// not finished at the previous poll, or it would be known
+					if (started[r][ua] == 0)
+						started[r][ua] = previousPoll;
+					finished[r][ua] = now;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return how long the run took in the user agent, or -1 if it was not
+	 *         seen both running and finished
+	 */
+	public synchronized long getDuration(int run, String userAgent) {
+		Integer ua = userAgentIndex.get(userAgent);
+		if (ua == null || run >= started.length || started[run] == null
+				|| started[run].length <= ua)
+			return -1;
+		if (started[run][ua] == 0 || finished[run][ua] == 0)
+			return -1;
+		return finished[run][ua] - started[run][ua];
+	}
+
+	/**
+	 * @return when the run was first seen finished in the user agent, or 0
+	 */
+	public synchronized long getFinishedAt(int run, String userAgent) {
+		Integer ua = userAgentIndex.get(userAgent);
+		if (ua == null || run >= finished.length || finished[run] == null
+				|| finished[run].length <= ua)
+			return 0;
+		return finished[run][ua];
+	}
+
+	/**
+	 * @return when the first run was seen finished in any user agent, or 0
+	 */
+	public synchronized long getFirstFinishedAt() {
+		long first = 0;
+		for (long[] runFinished : finished) {
+			if (runFinished == null)
+				continue;
+			for (long time : runFinished) {
+				if (time > 0 && (first == 0 || time < first))
+					first = time;
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * @return per user agent, when its last run was seen finished
+	 */
+	public synchronized Map<String, Long> getLastFinishedAt() {
+		long[] last = new long[userAgents.size()];
+		for (long[] runFinished : finished) {
+			if (runFinished == null)
+				continue;
+			for (int ua = 0; ua < runFinished.length; ua++)
+				last[ua] = Math.max(last[ua], runFinished[ua]);
+		}
+		Map<String, Long> lastFinishedAt = new LinkedHashMap<String, Long>();
+		for (int ua = 0; ua < last.length; ua++) {
+			if (last[ua] > 0)
+				lastFinishedAt.put(userAgents.get(ua), last[ua]);
+		}
+		return lastFinishedAt;
+	}
+
+	private int indexOf(String userAgent) {
+		Integer index = userAgentIndex.get(userAgent);
+		if (index == null) {
+			index = userAgents.size();
+			userAgents.add(userAgent);
+			userAgentIndex.put(userAgent, index);
+		}
+		return index;
+	}
+
+	private static long[] grow(long[] times, int length) {
+		return times == null ? new long[length] : Arrays.copyOf(times, length);
+	}
+
+}
@@ -0,0 +1,100 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+/**
+ * Outcome matrix of one build as read back from the {@link ResultStore}:
+ * every run and its status and duration in every user agent.
+ */
+public final class StoredResults {
+
+	private final int buildNumber;
+
+	private final long timestamp;
+
+	private final int jobStatus;
+
+	private final String[] userAgents;
+
+	private final String[] runNames;
+
+	private final String[] runUrls;
+
+	// per run and user agent, -1 when the run is not scheduled there
+	private final byte[][] statuses;
+
+	// per run and user agent in milliseconds, -1 when unknown
+	private final int[][] durations;
+
+	StoredResults(int buildNumber, long timestamp, int jobStatus,
+			String[] userAgents, String[] runNames, String[] runUrls,
+			byte[][] statuses, int[][] durations) {
+		this.buildNumber = buildNumber;
+		this.timestamp = timestamp;
+		this.jobStatus = jobStatus;
+		this.userAgents = userAgents;
+		this.runNames = runNames;
+		this.runUrls = runUrls;
+		this.statuses = statuses;
+		this.durations = durations;
+	}
+
+	public int getBuildNumber() {
+		return buildNumber;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public int getJobStatus() {
+		return jobStatus;
+	}
+
+	public int getUserAgentCount() {
+		return userAgents.length;
+	}
+
+	public String getUserAgent(int index) {
+		return userAgents[index];
+	}
+
+	public int getRunCount() {
+		return runNames.length;
+	}
+
+	public String getRunName(int run) {
+		return runNames[run];
+	}
+
+	public String getRunUrl(int run) {
+		return runUrls[run];
+	}
+
+	/**
+	 * @return the index of the first run with the given name, or -1
+	 */
+	public int indexOfRun(String name) {
+		for (int i = 0; i < runNames.length; i++) {
+			if (runNames[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the status of the run in the user agent, or null if it was
+	 *         not scheduled there
+	 */
+	public RunStatus getStatus(int run, int userAgent) {
+		byte status = statuses[run][userAgent];
+		return status < 0 ? null : RunStatus.valueOf(status);
+	}
+
+	/**
+	 * @return how long the run took in the user agent in milliseconds, or -1
+	 *         if unknown
+	 */
+	public int getDuration(int run, int userAgent) {
+		return durations[run][userAgent];
+	}
+
+}
@@ -0,0 +1,119 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Orders test suites by what recent builds recorded about them, so TestSwarm,
+ * which hands out the runs of a job roughly in submission order, gets to the
+ * suites that decide the build first: suites that failed most often in
+ * recent builds come first, so failures show up early and fail fast can end
+ * the build sooner, then the slowest suites, so the longest runs do not start
+ * last and stretch the job. Suites without any history are new or renamed
+ * and go before all others. Ties keep the configured order.
+ *
+ * Suites are matched to the recorded runs by their expanded name.
+ */
+public class SuiteOrder implements Comparator<String> {
+
+	private final Map<String, SuiteHistory> suites = new HashMap<String, SuiteHistory>();
+
+	/**
+	 * @param history
+	 *            outcomes of recent builds, as returned by
+	 *            {@link ResultStore#history}
+	 */
+	public SuiteOrder(List<StoredResults> history) {
+		for (StoredResults results : history) {
+			for (int run = 0; run < results.getRunCount(); run++) {
+				SuiteHistory suite = suites.get(results.getRunName(run));
+				if (suite == null) {
+					suite = new SuiteHistory();
+					suites.put(results.getRunName(run), suite);
+				}
+				suite.add(results, run);
+			}
+		}
+	}
+
+	public int compare(String a, String b) {
+		SuiteHistory historyA = suites.get(a);
+		SuiteHistory historyB = suites.get(b);
+		if (historyA == null || historyB == null)
+			return historyA == historyB ? 0 : historyA == null ? -1 : 1;
+
+		int failures = Double.compare(historyB.getFailureRate(),
+				historyA.getFailureRate());
+		if (failures != 0)
+			return failures;
+		long durationA = historyA.getLongestDuration();
+		long durationB = historyB.getLongestDuration();
+		return durationA > durationB ? -1 : durationA < durationB ? 1 : 0;
+	}
+
+	/**
+	 * @return what recent builds recorded about the suite, or null if it is
+	 *         not in any of them
+	 */
+	public SuiteHistory get(String suiteName) {
+		return suites.get(suiteName);
+	}
+
+	/**
+	 * The record of one suite over the recent builds.
+	 */
+	public static final class SuiteHistory {
+
+		private int builds;
+
+		private int failedBuilds;
+
+		// per user agent, total duration and number of known durations
+		private final Map<String, long[]> durations = new HashMap<String, long[]>();
+
+		void add(StoredResults results, int run) {
+			builds++;
+			boolean failed = false;
+			for (int ua = 0; ua < results.getUserAgentCount(); ua++) {
+				RunStatus status = results.getStatus(run, ua);
+				if (status == RunStatus.FAILED || status == RunStatus.ERROR
+						|| status == RunStatus.TIMEOUT)
+					failed = true;
+				int duration = results.getDuration(run, ua);
+				if (duration < 0)
+					continue;
+				long[] total = durations.get(results.getUserAgent(ua));
+				if (total == null) {
+					total = new long[2];
+					durations.put(results.getUserAgent(ua), total);
+				}
+				total[0] += duration;
+				total[1]++;
+			}
+			if (failed)
+				failedBuilds++;
+		}
+
+		/**
+		 * @return the share of the recent builds the suite failed, errored
+		 *         or timed out in, in any browser
+		 */
+		public double getFailureRate() {
+			return (double) failedBuilds / builds;
+		}
+
+		/**
+		 * @return the average duration of the suite in the browser it is
+		 *         slowest in, in milliseconds, or 0 if unknown
+		 */
+		public long getLongestDuration() {
+			long longest = 0;
+			for (long[] total : durations.values())
+				longest = Math.max(longest, total[0] / total[1]);
+			return longest;
+		}
+	}
+
+}
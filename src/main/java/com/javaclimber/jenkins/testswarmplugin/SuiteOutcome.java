@@ -0,0 +1,53 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+/**
+ * A test suite that passed, recorded with the fingerprint it had at the time
+ * so a later incremental build can reuse the result instead of submitting the
+ * suite again.
+ */
+public final class SuiteOutcome {
+
+	private final String fingerprint;
+
+	private final String name;
+
+	private final String url;
+
+	private final String[] passedIn;
+
+	// build the suite actually ran in, kept when the result is carried forward
+	private final int buildNumber;
+
+	public SuiteOutcome(String fingerprint, String name, String url,
+			String[] passedIn, int buildNumber) {
+		this.fingerprint = fingerprint;
+		this.name = name;
+		this.url = url;
+		this.passedIn = passedIn.clone();
+		this.buildNumber = buildNumber;
+	}
+
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return the user agents the suite passed in
+	 */
+	public String[] getPassedIn() {
+		return passedIn.clone();
+	}
+
+	public int getBuildNumber() {
+		return buildNumber;
+	}
+
+}
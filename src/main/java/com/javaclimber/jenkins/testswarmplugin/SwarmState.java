@@ -0,0 +1,183 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * Immutable view of one <tt>action=swarmstate</tt> response: for every user
+ * agent the swarm knows, how many clients are connected and how many runs
+ * are running and waiting for them.
+ */
+public final class SwarmState {
+
+	// thread safe, shared by every check
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final Map<String, UserAgentStats> userAgents;
+
+	private SwarmState(Map<String, UserAgentStats> userAgents) {
+		this.userAgents = userAgents;
+	}
+
+	/**
+	 * Parses an <tt>action=swarmstate</tt> response in a single streaming
+	 * pass.
+	 */
+	public static SwarmState parse(byte[] json) throws IOException {
+		JsonParser parser = JSON_FACTORY.createJsonParser(json);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException(
+						"TestSwarm swarm state response is not an object");
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if ("swarmstate".equals(field)
+						&& parser.getCurrentToken() == JsonToken.START_OBJECT) {
+					return new SwarmState(readSwarmState(parser));
+				} else if ("error".equals(field)
+						&& parser.getCurrentToken() == JsonToken.START_OBJECT) {
+					throw new IOException("swarm state request failed: "
+							+ AddJobRequest.readError(parser));
+				}
+				parser.skipChildren();
+			}
+			throw new IOException(
+					"TestSwarm swarm state response has no swarmstate");
+		} finally {
+			parser.close();
+		}
+	}
+
+	private static Map<String, UserAgentStats> readSwarmState(
+			JsonParser parser) throws IOException {
+		Map<String, UserAgentStats> userAgents = new LinkedHashMap<String, UserAgentStats>();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if (!"userAgents".equals(field)
+					|| parser.getCurrentToken() != JsonToken.START_OBJECT) {
+				parser.skipChildren();
+				continue;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String userAgent = parser.getCurrentName();
+				parser.nextToken();
+				userAgents.put(userAgent, readUserAgent(parser));
+			}
+		}
+		return userAgents;
+	}
+
+	private static UserAgentStats readUserAgent(JsonParser parser)
+			throws IOException {
+		int onlineClients = 0;
+		int activeRuns = 0;
+		int pendingRuns = 0;
+		if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+			parser.skipChildren();
+			return new UserAgentStats(0, 0, 0);
+		}
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if (!"stats".equals(field)
+					|| parser.getCurrentToken() != JsonToken.START_OBJECT) {
+				parser.skipChildren();
+				continue;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String stat = parser.getCurrentName();
+				parser.nextToken();
+				if ("onlineClients".equals(stat))
+					onlineClients = parser.getValueAsInt();
+				else if ("activeRuns".equals(stat))
+					activeRuns = parser.getValueAsInt();
+				else if ("pendingRuns".equals(stat)
+						|| "pendingReRuns".equals(stat))
+					pendingRuns += parser.getValueAsInt();
+				else
+					parser.skipChildren();
+			}
+		}
+		return new UserAgentStats(onlineClients, activeRuns, pendingRuns);
+	}
+
+	public Set<String> getUserAgents() {
+		return Collections.unmodifiableSet(userAgents.keySet());
+	}
+
+	/**
+	 * @return the state of the user agent, or null if the swarm does not
+	 *         know it
+	 */
+	public UserAgentStats get(String userAgent) {
+		return userAgents.get(userAgent);
+	}
+
+	/**
+	 * @return how many clients are connected across every user agent
+	 */
+	public int getOnlineClients() {
+		int onlineClients = 0;
+		for (UserAgentStats stats : userAgents.values())
+			onlineClients += stats.getOnlineClients();
+		return onlineClients;
+	}
+
+	public static final class UserAgentStats {
+
+		private final int onlineClients;
+
+		private final int activeRuns;
+
+		private final int pendingRuns;
+
+		UserAgentStats(int onlineClients, int activeRuns, int pendingRuns) {
+			this.onlineClients = onlineClients;
+			this.activeRuns = activeRuns;
+			this.pendingRuns = pendingRuns;
+		}
+
+		public int getOnlineClients() {
+			return onlineClients;
+		}
+
+		public int getActiveRuns() {
+			return activeRuns;
+		}
+
+		/**
+		 * @return runs waiting for a client, including reruns
+		 */
+		public int getPendingRuns() {
+			return pendingRuns;
+		}
+
+		/**
+		 * Estimates how long the given number of new runs take to finish in
+		 * this user agent, behind the runs already queued, with every client
+		 * working through the queue one run at a time.
+		 *
+		 * @param runInMillis
+		 *            how long one run takes
+		 * @return the time in milliseconds, or -1 if there is no client to
+		 *         run them
+		 */
+		public long expectedWait(int runs, long runInMillis) {
+			if (onlineClients <= 0)
+				return -1;
+			long queued = activeRuns + pendingRuns + runs;
+			return (queued + onlineClients - 1) / onlineClients * runInMillis;
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Controller-wide cache of the swarm state of each TestSwarm server, so
+ * builds starting together look it up once. A state is kept for
+ * {@link #TTL_IN_MILLIS}; builds asking for the state of a server while it
+ * is being fetched wait for that fetch instead of making their own.
+ */
+public final class SwarmStateCache {
+
+	static final long TTL_IN_MILLIS = 15 * 1000;
+
+	private static final SwarmStateCache INSTANCE = new SwarmStateCache();
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	private SwarmStateCache() {
+	}
+
+	public static SwarmStateCache get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the state of the swarm of the server, at most
+	 *         {@link #TTL_IN_MILLIS} old
+	 */
+	public SwarmState get(String testswarmServerUrl) throws IOException {
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(testswarmServerUrl);
+			if (entry == null) {
+				entry = new Entry(testswarmServerUrl);
+				entries.put(testswarmServerUrl, entry);
+			}
+		}
+		return entry.get();
+	}
+
+	private static final class Entry {
+
+		private final String url;
+
+		private SwarmState state;
+
+		private long fetchedAt;
+
+		Entry(String testswarmServerUrl) {
+			this.url = testswarmServerUrl
+					+ "/api.php?format=json&action=swarmstate";
+		}
+
+		synchronized SwarmState get() throws IOException {
+			long now = System.currentTimeMillis();
+			if (state == null || now - fetchedAt > TTL_IN_MILLIS) {
+				state = SwarmState.parse(TestSwarmHttpClient.get().get(url)
+						.getBody());
+				fetchedAt = now;
+			}
+			return state;
+		}
+	}
+
+}
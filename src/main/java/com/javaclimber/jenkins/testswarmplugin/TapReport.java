@@ -0,0 +1,79 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmBuilder.TestSuiteData;
+
+/**
+ * The TAP report of a build: one test point per run of the final snapshot,
+ * followed by the disabled suites as skipped. Kept apart from the build so
+ * the report can be produced from any snapshot.
+ */
+public class TapReport {
+
+	private final JobSnapshot snapshot;
+
+	private final int minimumPassing;
+
+	private final List<String> jobFriendlyUrls;
+
+	private final List<SuiteOutcome> reusedSuites;
+
+	private final List<TestSuiteData> disabledTests;
+
+	/**
+	 * @param reusedSuites
+	 *            suites reused from earlier builds, whose runs come after the
+	 *            runs of the submitted jobs in the snapshot
+	 */
+	public TapReport(JobSnapshot snapshot, int minimumPassing,
+			List<String> jobFriendlyUrls, List<SuiteOutcome> reusedSuites,
+			List<TestSuiteData> disabledTests) {
+		this.snapshot = snapshot;
+		this.minimumPassing = minimumPassing;
+		this.jobFriendlyUrls = jobFriendlyUrls;
+		this.reusedSuites = reusedSuites;
+		this.disabledTests = disabledTests;
+	}
+
+	// TODO add skipped
+	public void write(TapWriter tap) throws IOException {
+		tap.plan(snapshot.getRunCount() + disabledTests.size());
+		for (String jobFriendlyUrl : jobFriendlyUrls)
+			tap.comment(jobFriendlyUrl);
+
+		int firstReused = snapshot.getRunCount() - reusedSuites.size();
+		int[] resultCount = new int[RunStatus.count()];
+		for (int i = 0; i < snapshot.getRunCount(); i++) {
+			JobSnapshot.Run run = snapshot.getRun(i);
+			Arrays.fill(resultCount, 0);
+			run.countStatuses(resultCount);
+			int passed = resultCount[RunStatus.PASSED.ordinal()];
+
+			if (resultCount[RunStatus.FAILED.ordinal()] == 0)
+				if (passed >= minimumPassing)
+					tap.ok(run.getName());
+				else {
+					tap.notOk(run.getName());
+					tap.comment("passing: " + passed + " < " + minimumPassing);
+				}
+			else {
+				// failure
+				tap.notOk(run.getName());
+				tap.comment("failing - " + run.getUserAgents(RunStatus.FAILED));
+				tap.comment("passed - " + run.getUserAgents(RunStatus.PASSED));
+			}
+
+			tap.comment(run.getUrl());
+			if (i >= firstReused)
+				tap.comment("reused from build #"
+						+ reusedSuites.get(i - firstReused).getBuildNumber());
+		}
+
+		for (TestSuiteData diabledTest : disabledTests)
+			tap.skip(diabledTest.testName, "test disabled");
+	}
+
+}
@@ -0,0 +1,74 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a TAP report one line at a time, so a report for thousands of runs
+ * never has to be held in memory. Test points are numbered in the order
+ * they are written.
+ */
+public class TapWriter {
+
+	private final Writer out;
+
+	private int number;
+
+	public TapWriter(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes the plan, which must come before the first test point.
+	 */
+	public void plan(int tests) throws IOException {
+		out.write("1.." + tests + "\n");
+	}
+
+	/**
+	 * Writes a diagnostic line, which belongs to the test point before it.
+	 */
+	public void comment(String comment) throws IOException {
+		out.write("# ");
+		out.write(singleLine(comment));
+		out.write('\n');
+	}
+
+	public void ok(String description) throws IOException {
+		testPoint("ok", description, null);
+	}
+
+	public void notOk(String description) throws IOException {
+		testPoint("not ok", description, null);
+	}
+
+	public void skip(String description, String reason) throws IOException {
+		testPoint("ok", description, "SKIP " + singleLine(reason));
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private void testPoint(String status, String description, String directive)
+			throws IOException {
+		out.write(status);
+		out.write(' ');
+		out.write(String.valueOf(++number));
+		if (description != null) {
+			out.write(" - ");
+			// a # would start a directive
+			out.write(singleLine(description).replace("#", "\\#"));
+		}
+		if (directive != null) {
+			out.write(" # ");
+			out.write(directive);
+		}
+		out.write('\n');
+	}
+
+	private static String singleLine(String text) {
+		return text == null ? "" : text.replace('\r', ' ').replace('\n', ' ');
+	}
+
+}
@@ -0,0 +1,124 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Publisher;
+import hudson.tasks.Recorder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Waits for the TestSwarm jobs submitted earlier in the build by a
+ * {@link TestSwarmBuilder} set to submit only, so the build steps in between
+ * run while the swarm works on the jobs. The jobs are polled all along by the
+ * shared poller; this step only collects the outcome, records it and writes
+ * the reports as the builder would have.
+ */
+public class TestSwarmAwaitRecorder extends Recorder {
+
+	// jobs submitted without waiting, by build, until they are waited for or
+	// the build ends
+	private static final Map<AbstractBuild<?, ?>, List<PendingTestSwarmJobs>> PENDING =
+			new HashMap<AbstractBuild<?, ?>, List<PendingTestSwarmJobs>>();
+
+	@DataBoundConstructor
+	public TestSwarmAwaitRecorder() {
+	}
+
+	public BuildStepMonitor getRequiredMonitorService() {
+		return BuildStepMonitor.NONE;
+	}
+
+	@Override
+	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher,
+			BuildListener listener) {
+		List<PendingTestSwarmJobs> pendingJobs = takePending(build);
+		if (pendingJobs.isEmpty()) {
+			listener.getLogger().println(
+					"No TestSwarm jobs were submitted without waiting");
+			return true;
+		}
+
+		boolean passed = true;
+		for (PendingTestSwarmJobs pending : pendingJobs) {
+			listener.getLogger().println(
+					"Waiting for the TestSwarm jobs "
+							+ pending.getExecution().getJobFriendlyUrls());
+			// sets the build result as the builder would have
+			if (!pending.await())
+				passed = false;
+		}
+		return passed;
+	}
+
+	/**
+	 * Keeps jobs the build submitted without waiting for this step.
+	 */
+	static void addPending(AbstractBuild<?, ?> build,
+			PendingTestSwarmJobs pending) {
+		synchronized (PENDING) {
+			List<PendingTestSwarmJobs> pendingJobs = PENDING.get(build);
+			if (pendingJobs == null) {
+				pendingJobs = new ArrayList<PendingTestSwarmJobs>();
+				PENDING.put(build, pendingJobs);
+			}
+			pendingJobs.add(pending);
+		}
+	}
+
+	private static List<PendingTestSwarmJobs> takePending(
+			AbstractBuild<?, ?> build) {
+		synchronized (PENDING) {
+			List<PendingTestSwarmJobs> pendingJobs = PENDING.remove(build);
+			return pendingJobs == null ? Collections
+					.<PendingTestSwarmJobs> emptyList() : pendingJobs;
+		}
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends
+			BuildStepDescriptor<Publisher> {
+
+		public boolean isApplicable(Class<? extends AbstractProject> aClass) {
+			return true;
+		}
+
+		public String getDisplayName() {
+			return "Await TestSwarm Results";
+		}
+	}
+
+	/**
+	 * Stops polling jobs a build submitted without waiting but never waited
+	 * for, and lets go of them as abandoned. Runs before
+	 * {@link JobRegistry.ReleaseOnCompletion}, which would otherwise let go of
+	 * them as if they had been waited for.
+	 */
+	@Extension(ordinal = 1)
+	public static final class AbandonedJobs extends RunListener<AbstractBuild> {
+
+		public AbandonedJobs() {
+			super(AbstractBuild.class);
+		}
+
+		@Override
+		public void onCompleted(AbstractBuild build, TaskListener listener) {
+			for (PendingTestSwarmJobs pending : takePending(build))
+				pending.cancel(listener);
+		}
+	}
+
+}
@@ -0,0 +1,144 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import hudson.model.Action;
+import hudson.model.Run;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records the TestSwarm jobs a build ran and how long the build waited for
+ * them, so later builds of the same project can plan their polling, and in
+ * incremental mode which suites passed so they can be skipped. Shows the
+ * jobs and where the time of the build went on its TestSwarm page.
+ */
+public class TestSwarmBuildAction implements Action {
+
+	// how many earlier builds are considered when estimating the wait
+	private static final int HISTORY_SIZE = 5;
+
+	// how many earlier builds are looked at for them at most
+	private static final int MAX_BUILDS_VISITED = 10;
+
+	private final String testswarmServerUrl;
+
+	private final int[] jobIds;
+
+	private final long waitInMillis;
+
+	private final int jobStatus;
+
+	// null unless the build selected its suites incrementally
+	private final SuiteOutcome[] passedSuites;
+
+	// null for builds recorded before the metrics were
+	private final BuildMetrics metrics;
+
+	public TestSwarmBuildAction(String testswarmServerUrl, int[] jobIds,
+			long waitInMillis, int jobStatus, List<SuiteOutcome> passedSuites,
+			BuildMetrics metrics) {
+		this.testswarmServerUrl = testswarmServerUrl;
+		this.jobIds = jobIds.clone();
+		this.waitInMillis = waitInMillis;
+		this.jobStatus = jobStatus;
+		this.passedSuites = passedSuites == null ? null : passedSuites
+				.toArray(new SuiteOutcome[passedSuites.size()]);
+		this.metrics = metrics;
+	}
+
+	public String getIconFileName() {
+		return "clock.gif";
+	}
+
+	public String getDisplayName() {
+		return "TestSwarm";
+	}
+
+	public String getUrlName() {
+		return "testswarm";
+	}
+
+	public String getTestswarmServerUrl() {
+		return testswarmServerUrl;
+	}
+
+	/**
+	 * @return the ids of the jobs, one per shard
+	 */
+	public int[] getJobIds() {
+		return jobIds.clone();
+	}
+
+	/**
+	 * @return the TestSwarm page of the given job
+	 */
+	public String getJobUrl(int jobId) {
+		return testswarmServerUrl + "/job/" + jobId;
+	}
+
+	public long getWaitInMillis() {
+		return waitInMillis;
+	}
+
+	public int getJobStatus() {
+		return jobStatus;
+	}
+
+	/**
+	 * @return the suites which passed, or null if the build did not record
+	 *         them
+	 */
+	public List<SuiteOutcome> getPassedSuites() {
+		return passedSuites == null ? null : Arrays.asList(passedSuites);
+	}
+
+	public BuildMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Shortest time recent successful builds waited for their job to pass,
+	 * or 0 if none recorded it. A job is not expected to complete faster than
+	 * that, so polls before then only need to watch for failures. Only the
+	 * last {@link #MAX_BUILDS_VISITED} successful builds are looked at, so a
+	 * project whose builds rarely pass does not have its whole history
+	 * loaded.
+	 */
+	public static long shortestRecentWait(Run<?, ?> build) {
+		long shortest = 0;
+		int seen = 0;
+		int visited = 0;
+		for (Run<?, ?> previous = build.getPreviousSuccessfulBuild(); previous != null
+				&& seen < HISTORY_SIZE && visited < MAX_BUILDS_VISITED; previous = previous
+				.getPreviousSuccessfulBuild()) {
+			visited++;
+			TestSwarmBuildAction action = previous
+					.getAction(TestSwarmBuildAction.class);
+			if (action == null || action.jobStatus != TestSwarmBuilder.ALL_PASSING
+					|| action.jobIds.length == 0)
+				continue;
+			seen++;
+			if (shortest == 0 || action.waitInMillis < shortest)
+				shortest = action.waitInMillis;
+		}
+		return shortest;
+	}
+
+	/**
+	 * Suites recorded as passed by the closest earlier build which ran
+	 * TestSwarm, or null if there is none or it did not record them.
+	 */
+	public static List<SuiteOutcome> previousPassedSuites(Run<?, ?> build) {
+		int seen = 0;
+		for (Run<?, ?> previous = build.getPreviousBuild(); previous != null
+				&& seen < HISTORY_SIZE; previous = previous.getPreviousBuild()) {
+			seen++;
+			TestSwarmBuildAction action = previous
+					.getAction(TestSwarmBuildAction.class);
+			if (action != null)
+				return action.getPassedSuites();
+		}
+		return null;
+	}
+
+}
@@ -1,51 +1,39 @@
 package com.javaclimber.jenkins.testswarmplugin;
 
-import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
-import hudson.Util;
 import hudson.model.BuildListener;
+import hudson.model.Job;
 import hudson.model.Result;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
-import hudson.util.VariableResolver;
 
-import java.io.BufferedReader;
-import java.io.File;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.io.Serializable;
 import java.net.URL;
-import java.net.URLConnection;
-import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.servlet.ServletException;
 
 import net.sf.json.JSONObject;
 
-import org.codehaus.jackson.map.ObjectMapper;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
-import org.tap4j.model.Comment;
-import org.tap4j.model.Directive;
-import org.tap4j.model.Plan;
-import org.tap4j.model.TestResult;
-import org.tap4j.model.TestSet;
-import org.tap4j.producer.TapProducer;
-import org.tap4j.util.DirectiveValues;
-import org.tap4j.util.StatusValues;
 
 /**
  * This is plugin is responsible for integrating TestSwarm into jenkins. It will
@@ -55,22 +43,19 @@ import org.tap4j.util.StatusValues;
  * 
  */
 public class TestSwarmBuilder extends Builder {
-	private ObjectMapper mapper = new ObjectMapper();
-
 	protected final String CHAR_ENCODING = "iso-8859-1";
 
-	// client id
-	private final String CLIENT_ID = "fromJenkins";
+	// how many earlier builds the run durations are averaged over
+	private static final int CAPACITY_HISTORY_SIZE = 5;
 
-	// state
-	private final String STATE = "addjob";
+	// number of recent builds the suites are ordered by
+	private static final int ORDER_HISTORY_SIZE = 10;
 
 	// browsers type
 	private String chooseBrowsers;
 
 	// job name
 	private String jobName;
-	private String jobNameCopy;
 
 	// user name
 	private String projectId;
@@ -84,6 +69,51 @@ public class TestSwarmBuilder extends Builder {
 	// minimum passing
 	private String minimumPassing;
 
+	// stop waiting as soon as the first run fails in a browser
+	private boolean failFast;
+
+	// dump raw TestSwarm responses and every run on every poll
+	private boolean debugLogging;
+
+	// only submit suites which changed or did not pass in the previous build
+	private boolean incremental;
+
+	// how often a run is retried in a browser, empty means never
+	private String maxRetries;
+
+	// statuses a run is retried after, such as "error, timeout"
+	private String retryStatuses;
+
+	// also write a JUnit XML report with a test case per browser
+	private boolean junitReport;
+
+	// fail instead of warn when a browser has no clients in the swarm
+	private boolean failWithoutClients;
+
+	// return once submitted, the results are awaited by TestSwarmAwaitRecorder
+	private boolean submitOnly;
+
+	/*
+	 * When to stop waiting for the remaining browsers, such as "quorum" or
+	 * "per-family, cancel". Empty means waiting for every browser.
+	 */
+	private String earlyExit;
+
+	// submit likely failing and slow suites first, by recent results
+	private boolean orderByHistory;
+
+	/*
+	 * Minutes a finished job submitted with the same suites and browsers is
+	 * used instead of submitting a new one. Empty means never.
+	 */
+	private String reuseWindowInMins;
+
+	/*
+	 * Maximum number of test suites submitted in one TestSwarm job, larger
+	 * suite lists are split into several jobs. Empty means no limit.
+	 */
+	private String suitesPerJob;
+
 	// test swarm server url
 	private String testswarmServerUrl;
 
@@ -100,10 +130,6 @@ public class TestSwarmBuilder extends Builder {
 
 	private TestSuiteData[] testSuiteList = new TestSuiteData[0];
 
-	private TestSuiteData[] testSuiteListCopy;
-
-	private String testswarmServerUrlCopy;
-
 	// private TestTypeConfig testTypeConfig;
 
 	private TestSwarmDecisionMaker resultsAnalyzer;
@@ -123,7 +149,11 @@ public class TestSwarmBuilder extends Builder {
 			String projectId, String authToken, String maxRuns,
 			String chooseBrowsers, String pollingIntervalInSecs,
 			String timeOutPeriodInMins, String minimumPassing,
-			List<TestSuiteData> testSuiteList) {
+			boolean failFast, boolean debugLogging, String suitesPerJob,
+			boolean incremental, String maxRetries, String retryStatuses,
+			boolean junitReport, boolean failWithoutClients,
+			boolean submitOnly, String earlyExit, boolean orderByHistory,
+			String reuseWindowInMins, List<TestSuiteData> testSuiteList) {
 
 		this.testswarmServerUrl = testswarmServerUrl;
 		this.jobName = jobName;
@@ -134,6 +164,18 @@ public class TestSwarmBuilder extends Builder {
 		this.pollingIntervalInSecs = pollingIntervalInSecs;
 		this.timeOutPeriodInMins = timeOutPeriodInMins;
 		this.minimumPassing = minimumPassing;
+		this.failFast = failFast;
+		this.debugLogging = debugLogging;
+		this.suitesPerJob = suitesPerJob;
+		this.incremental = incremental;
+		this.maxRetries = maxRetries;
+		this.retryStatuses = retryStatuses;
+		this.junitReport = junitReport;
+		this.failWithoutClients = failWithoutClients;
+		this.submitOnly = submitOnly;
+		this.earlyExit = earlyExit;
+		this.orderByHistory = orderByHistory;
+		this.reuseWindowInMins = reuseWindowInMins;
 		this.testSuiteList = testSuiteList
 				.toArray(new TestSuiteData[testSuiteList.size()]);
 		// this.testTypeConfig = testTypeConfig;
@@ -181,6 +223,58 @@ public class TestSwarmBuilder extends Builder {
 		return timeOutPeriodInMins;
 	}
 
+	public String getMinimumPassing() {
+		return minimumPassing;
+	}
+
+	public boolean isFailFast() {
+		return failFast;
+	}
+
+	public boolean isDebugLogging() {
+		return debugLogging;
+	}
+
+	public String getSuitesPerJob() {
+		return suitesPerJob;
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	public String getMaxRetries() {
+		return maxRetries;
+	}
+
+	public String getRetryStatuses() {
+		return retryStatuses;
+	}
+
+	public boolean isJunitReport() {
+		return junitReport;
+	}
+
+	public boolean isFailWithoutClients() {
+		return failWithoutClients;
+	}
+
+	public boolean isSubmitOnly() {
+		return submitOnly;
+	}
+
+	public String getEarlyExit() {
+		return earlyExit;
+	}
+
+	public boolean isOrderByHistory() {
+		return orderByHistory;
+	}
+
+	public String getReuseWindowInMins() {
+		return reuseWindowInMins;
+	}
+
 	/**
 	 * Check if config file loc is a url
 	 * 
@@ -209,27 +303,9 @@ public class TestSwarmBuilder extends Builder {
 		listener.getLogger()
 				.println("Launching TestSwarm Integration Suite...");
 
-		testswarmServerUrlCopy = new String(testswarmServerUrl);
-
-		testSuiteListCopy = new TestSuiteData[testSuiteList.length];
-		TestSuiteData copyData;
-		TestSuiteData origData;
-		for (int i = 0; i < testSuiteList.length; i++) {
-			origData = (TestSuiteData) testSuiteList[i];
-			copyData = new TestSuiteData(origData.testName, origData.testUrl,
-					origData.testCacheCracker, origData.disableTest);
-			// listener.getLogger().println(copyData.testName+"  --->  "+copyData.testUrl);
-
-			if (origData.disableTest)
-				listener.getLogger().println(
-						"Test is disabled for : " + origData.testName);
-
-			testSuiteListCopy[i] = copyData;
-
-		}
-
-		// resolve environmental variables
-		expandRuntimeVariables(listener, build);
+		// resolve environmental variables into this build's own copy
+		TestSwarmExecution execution = TestSwarmExecution.expand(this, build,
+				listener);
 
 		// check all required parameters are entered
 		if (this.getTestswarmServerUrl() == null
@@ -304,102 +380,106 @@ public class TestSwarmBuilder extends Builder {
 			}
 		}
 
-		if (!isValidUrl(getTestswarmServerUrl())) {
-			listener.error("Testswarm Server Url is not a valid url ! check your TestSwarm Integration Plugin configuration");
-			build.setResult(Result.FAILURE);
-			return false;
+		if (this.getSuitesPerJob() != null
+				&& this.getSuitesPerJob().trim().length() > 0) {
+			// Check for integer value
+			try {
+				Integer.parseInt(getSuitesPerJob().trim());
+			} catch (Exception parseEx) {
+				listener.error("Suites per job is not an integer");
+				build.setResult(Result.FAILURE);
+				return false;
+			}
 		}
 
-		try {
-
-			String data = "authID="
-					+ URLEncoder.encode(projectId, "UTF-8") + "&authToken="
-					+ URLEncoder.encode(authToken, "UTF-8") + "&jobName="
-					+ jobName + "&runMax=" + maxRuns + "&browserSets[]="
-					+ chooseBrowsers + buildTestSuitesQueryString();
-
-			System.out.println(data);
-
-			URL url = new URL(testswarmServerUrl + "/api.php?action=addjob");
-			URLConnection conn = url.openConnection();
-			conn.setDoOutput(true);
-			OutputStreamWriter wr = new OutputStreamWriter(
-					conn.getOutputStream());
-			wr.write(data);
-			wr.flush();
-
-			// Get the response
-			BufferedReader rd = new BufferedReader(new InputStreamReader(
-					conn.getInputStream()));
-			String line;
-			String result = "";
-			while ((line = rd.readLine()) != null) {
-				listener.getLogger().println(line);
-				result += line;
+		if (this.getMaxRetries() != null
+				&& this.getMaxRetries().trim().length() > 0) {
+			// Check for integer value
+			try {
+				Integer.parseInt(getMaxRetries().trim());
+			} catch (Exception parseEx) {
+				listener.error("Maximum number of retries is not an integer");
+				build.setResult(Result.FAILURE);
+				return false;
 			}
-			wr.close();
-			rd.close();
-
-			int jobId = -1;
-			if (result == null || "".equals(result)) {
-				listener.error("no result from job submission");
+			try {
+				RetryPolicy.parseStatuses(getRetryStatusesOrDefault());
+			} catch (IllegalArgumentException parseEx) {
+				listener.error(parseEx.getMessage());
 				build.setResult(Result.FAILURE);
 				return false;
 			}
+		}
 
-			ObjectMapper mapper = new ObjectMapper(); // can reuse, share
-														// globally
-			Map<String, Object> resultMap = mapper.readValue(result, Map.class);
-
-			Map<String, Object> addJobResult = (Map) resultMap.get("addjob");
-			jobId = (Integer) addJobResult.get("id");
+		if (this.getReuseWindowInMins() != null
+				&& this.getReuseWindowInMins().trim().length() > 0) {
+			// Check for integer value
+			try {
+				Integer.parseInt(getReuseWindowInMins().trim());
+			} catch (Exception parseEx) {
+				listener.error("Job reuse window is not an integer");
+				build.setResult(Result.FAILURE);
+				return false;
+			}
+		}
 
-			String jobUrl = this.testswarmServerUrlCopy
-					+ "/api.php?format=json&action=job&item=" + jobId;
-			listener.getLogger()
-					.println(
-							"**************************************************************");
-			listener.getLogger().println(
-					"Your request is successfully posted to TestSwarm Server and "
-							+ " you can view the result in the following URL");
-			listener.getLogger().println(
-					testswarmServerUrlCopy + "/job/" + jobId);
+		if (earlyExit != null && earlyExit.trim().length() > 0) {
+			try {
+				EarlyExitPolicy.parse(earlyExit);
+			} catch (IllegalArgumentException parseEx) {
+				listener.error(parseEx.getMessage());
+				build.setResult(Result.FAILURE);
+				return false;
+			}
+		}
 
-			listener.getLogger().println();
+		if (!isValidUrl(execution.getTestswarmServerUrl())) {
+			listener.error("Testswarm Server Url is not a valid url ! check your TestSwarm Integration Plugin configuration");
+			build.setResult(Result.FAILURE);
+			return false;
+		}
 
-			listener.getLogger().println(jobUrl);
-			listener.getLogger()
-					.println(
-							"**************************************************************");
-			listener.getLogger().println("");
-			listener.getLogger().println("Analyzing Test Suite Result....");
-			int jobStatus = analyzeTestSuiteResults(jobUrl, build, listener);
+		try {
 
-			boolean jobResult = (jobStatus == ALL_PASSING || jobStatus == IN_PROGRESS_ENOUGH_PASSING_NO_ERRORS);
+			int minimumPassingRuns = Integer.parseInt(minimumPassing);
+			if (incremental) {
+				execution.selectIncremental(chooseBrowsers, minimumPassingRuns,
+						TestSwarmBuildAction.previousPassedSuites(build));
+				listener.getLogger().println(
+						"Reusing the results of "
+								+ execution.getReusedSuites().size()
+								+ " unchanged test suites, submitting "
+								+ execution.getSubmittedTestSuites().size());
+			}
 
-			if (jobResult) {
-				build.setResult(Result.SUCCESS);
+			int jobStatus;
+			long waitStart = System.currentTimeMillis();
+			if (execution.getSubmittedTestSuites().isEmpty()
+					&& !execution.getReusedSuites().isEmpty()) {
+				listener.getLogger().println(
+						"All test suites passed before, nothing to submit");
+				jobStatus = ALL_PASSING;
 			} else {
-				build.setResult(Result.FAILURE);
+				if (orderByHistory)
+					orderByHistory(execution);
+				if (!checkSwarmCapacity(execution)) {
+					build.setResult(Result.FAILURE);
+					return false;
+				}
+				submit(execution);
+				if (submitOnly) {
+					TestSwarmAwaitRecorder.addPending(build,
+							new PendingTestSwarmJobs(this, execution,
+									minimumPassingRuns, waitStart));
+					listener.getLogger().println(
+							"Not waiting for the TestSwarm results here, "
+									+ "they are collected by the Await TestSwarm Results step");
+					return true;
+				}
+				jobStatus = await(execution);
 			}
-
-			listener.getLogger().println(
-					"Analyzing Test Suite Result COMPLETED...");
-
-			if (jobStatus == ALL_PASSING)
-				listener.getLogger().println("ALL PASSING");
-			else if (jobStatus == IN_PROGRESS_ENOUGH_PASSING_NO_ERRORS)
-				listener.getLogger()
-						.println("ALL PASSING - SOME STILL RUNNING");
-			else if (jobStatus == IN_PROGRESS_NOT_ENOUGH_PASSING_NO_ERRORS)
-				listener.getLogger().println("FAILURE - NOT ENOUGH FINISHED");
-			else if (jobStatus == FAILURE_DONE
-					|| jobStatus == FAILURE_IN_PROGRESS)
-				listener.getLogger().println("FAILURE");
-
-			produceTAPReport(jobUrl, build, Integer.parseInt(minimumPassing),
-					testswarmServerUrlCopy + "/job/" + jobId);
-			return jobResult;
+			return complete(execution, jobStatus, waitStart,
+					minimumPassingRuns);
 
 		} catch (Exception ex) {
 			ex.printStackTrace();
@@ -411,285 +491,490 @@ public class TestSwarmBuilder extends Builder {
 
 	}
 
-	// TODO add skipped
-	@SuppressWarnings("unchecked")
-	private void produceTAPReport(String jobUrl, AbstractBuild build,
-			int minimumPassing, String jobFriendlyUrl) {
+	/**
+	 * Reorders the suites to submit by the results of recent builds, see
+	 * {@link SuiteOrder}. Without any, the configured order is kept.
+	 */
+	private void orderByHistory(TestSwarmExecution execution) {
+		BuildListener listener = execution.getListener();
+		List<StoredResults> history;
 		try {
+			history = ResultStore.history(execution.getBuild().getParent(),
+					ORDER_HISTORY_SIZE);
+		} catch (IOException ex) {
+			listener.getLogger().println(
+					"Could not read the results of recent builds: " + ex);
+			return;
+		}
+		if (history.isEmpty()) {
+			listener.getLogger().println(
+					"No results of recent builds to order the test suites by");
+			return;
+		}
 
-			List<TestSuiteData> disabledTests = new ArrayList<TestSwarmBuilder.TestSuiteData>();
-			for (int i = 0; i < testSuiteListCopy.length; i++) {
-				if (testSuiteListCopy[i].isDisableTest()) {
-					disabledTests.add(testSuiteListCopy[i]);
-				}
+		SuiteOrder order = new SuiteOrder(history);
+		execution.reorder(order);
+		listener.getLogger().println(
+				"Ordered the test suites by the results of the last "
+						+ history.size() + " builds");
+		if (debugLogging) {
+			for (TestSuiteData testSuite : execution.getSubmittedTestSuites()) {
+				SuiteOrder.SuiteHistory suite = order.get(testSuite
+						.getTestName());
+				if (suite == null)
+					listener.getLogger().println(
+							testSuite.getTestName() + ": no history");
+				else
+					listener.getLogger().println(
+							testSuite.getTestName() + ": failed in "
+									+ Math.round(suite.getFailureRate() * 100)
+									+ "% of builds, up to "
+									+ (suite.getLongestDuration() + 500)
+									/ 1000 + " seconds");
 			}
+		}
+	}
 
-			TapProducer tapProducer = new TapProducer();// TapProducerFactory.makeTap13YamlProducer();
-
-			TestSet testSet = new TestSet();
-			testSet.addComment(new Comment(jobFriendlyUrl));
-
-			String json;
-
-			json = this.resultsAnalyzer.grabPage(jobUrl);
-
-			ObjectMapper mapper = new ObjectMapper(); // can reuse, share
-			// globally
-
-			Map<String, Object> resultMap = mapper.readValue(json, Map.class);
-
-			Map<String, Object> job = (Map<String, Object>) resultMap
-					.get("job");
-			List<Map<String, Object>> runs = (ArrayList<Map<String, Object>>) job
-					.get("runs");
-			testSet.setPlan(new Plan(runs.size() + disabledTests.size()));
-			int i = 1;
-			for (Map<String, Object> run : runs) {
-				Map<String, Integer> resultCount = new HashMap<String, Integer>();
-				Map<String, List<String>> resultBrowsers = new HashMap<String, List<String>>();
-				Map<String, Object> uaRuns = (Map<String, Object>) run
-						.get("uaRuns");
-				for (String ua : uaRuns.keySet()) {
-					Map<String, Object> uaRun = (Map<String, Object>) uaRuns
-							.get(ua);
-					String runStatus = (String) uaRun.get("runStatus");
-					Integer resultTypeCount = resultCount.get(runStatus);
-					if (resultTypeCount == null) {
-						resultTypeCount = new Integer(0);
-					}
-					resultTypeCount++;
-					resultCount.put(runStatus, resultTypeCount);
-
-					List<String> browserList = resultBrowsers.get(runStatus);
-					if (browserList == null)
-						browserList = new ArrayList<String>();
-					browserList.add(ua);
-					resultBrowsers.put(runStatus, browserList);
-				}
-				resultCount.remove("new");
-				resultBrowsers.remove("new");
-
-				TestResult testResult = null;
-				if (resultCount.get("failed") == null)
-					if (resultCount.get("passed") != null
-							&& resultCount.get("passed") >= minimumPassing)
-						testResult = new TestResult(StatusValues.OK, i);
-					else {
-						testResult = new TestResult(StatusValues.NOT_OK, i);
-						testResult.addComment(new Comment("passing: "
-								+ resultCount.get("passed") + " < "
-								+ minimumPassing));
-					}
-				else {
-					// failure
-					testResult = new TestResult(StatusValues.NOT_OK, i);
-					testResult.addComment(new Comment("failing - "
-							+ resultBrowsers.get("failed")));
-					testResult.addComment(new Comment("passed - "
-							+ resultBrowsers.get("passed")));
-					// TestSet testSubset = new TestSet();
-					//
-					// int subtestIndex = 0;
-					//
-					// for (String result : resultBrowsers.keySet()) {
-					// if ("passed".equals(result)) {
-					// List<String> uas = resultBrowsers.get(result);
-					// for (String ua : uas) {
-					// TestResult subtestResult = new TestResult(
-					// StatusValues.OK, subtestIndex);
-					// subtestResult
-					// .setDescription((String) ((Map) run
-					// .get("info")).get("name")
-					// + " - " + ua);
-					// testSubset.addTestResult(subtestResult);
-					// subtestIndex++;
-					// }
-					// } else if ("failed".equals(result)) {
-					// List<String> uas = resultBrowsers.get(result);
-					// for (String ua : uas) {
-					// TestResult subtestResult = new TestResult(
-					// StatusValues.NOT_OK, subtestIndex);
-					// subtestResult
-					// .setDescription((String) ((Map) run
-					// .get("info")).get("name")
-					// + " - " + ua);
-					// testSubset.addTestResult(subtestResult);
-					// subtestIndex++;
-					// }
-					//
-					// }
-					// }
-					//
-					// if (subtestIndex > 0) {
-					// testSubset.setPlan(new Plan(subtestIndex));
-					// testResult.setSubtest(testSubset);
-					// }
-				}
+	/**
+	 * Looks at the clients connected to the swarm before submitting. The
+	 * browsers are those the previous build ran in, or any browser when
+	 * there is no previous build. A browser without clients fails the build
+	 * when <tt>failWithoutClients</tt> is set and is warned about otherwise.
+	 * For the others the time their queue takes, with the run durations of
+	 * recent builds, is kept so the polls can wait for it.
+	 *
+	 * @return false if the build should fail
+	 */
+	private boolean checkSwarmCapacity(TestSwarmExecution execution) {
+		BuildListener listener = execution.getListener();
+		SwarmState state;
+		try {
+			state = SwarmStateCache.get().get(
+					execution.getTestswarmServerUrl());
+		} catch (IOException ex) {
+			// older TestSwarm servers have no swarm state
+			listener.getLogger().println(
+					"Could not check the clients of the swarm: " + ex);
+			return true;
+		}
 
-				testResult.setDescription((String) ((Map) run.get("info"))
-						.get("name"));
-				testResult.addComment(new Comment((String) ((Map) run
-						.get("info")).get("url")));
-				testSet.addTestResult(testResult);
-				i++;
+		List<StoredResults> history;
+		Map<String, Long> durations;
+		try {
+			Job<?, ?> project = execution.getBuild().getParent();
+			history = ResultStore.history(project, 1);
+			durations = ResultStore.averageDurations(project,
+					CAPACITY_HISTORY_SIZE);
+		} catch (IOException ex) {
+			history = Collections.emptyList();
+			durations = Collections.emptyMap();
+		}
+
+		List<String> withoutClients = new ArrayList<String>();
+		if (history.isEmpty()) {
+			if (state.getOnlineClients() == 0)
+				withoutClients.add("any browser");
+		} else {
+			StoredResults previous = history.get(0);
+			int runs = execution.getSubmittedTestSuites().size();
+			long expectedWait = 0;
+			for (int ua = 0; ua < previous.getUserAgentCount(); ua++) {
+				String userAgent = previous.getUserAgent(ua);
+				SwarmState.UserAgentStats stats = state.get(userAgent);
+				if (stats == null || stats.getOnlineClients() == 0) {
+					withoutClients.add(userAgent);
+					continue;
+				}
+				Long duration = durations.get(userAgent);
+				long wait = duration == null ? 0 : stats.expectedWait(runs,
+						duration);
+				listener.getLogger().println(
+						userAgent + ": " + stats.getOnlineClients()
+								+ " clients, "
+								+ (stats.getActiveRuns() + stats
+										.getPendingRuns()) + " runs queued"
+								+ (wait > 0 ? ", expected to take about "
+										+ (wait + 59999) / 60000 + " min" : ""));
+				expectedWait = Math.max(expectedWait, wait);
 			}
+			execution.setExpectedWait(expectedWait);
+			if (expectedWait > Long.parseLong(getTimeOutPeriodInMins()) * 60000)
+				listener.getLogger().println(
+						"WARNING: the swarm is expected to need about "
+								+ (expectedWait + 59999) / 60000
+								+ " min for this job, longer than the timeout of "
+								+ getTimeOutPeriodInMins() + " min");
+		}
 
-			for (TestSuiteData diabledTest : disabledTests) {
-				TestResult testResult = new TestResult(StatusValues.OK, i);
+		if (withoutClients.isEmpty())
+			return true;
+		if (failWithoutClients) {
+			listener.error("No clients connected to the swarm for "
+					+ withoutClients);
+			return false;
+		}
+		listener.getLogger().println(
+				"WARNING: no clients connected to the swarm for "
+						+ withoutClients
+						+ ", the job will wait for them to join");
+		return true;
+	}
 
-				testResult.setDescription(diabledTest.testName);
+	/**
+	 * Records the outcome of the jobs with the build and writes the reports.
+	 *
+	 * @return true if the jobs passed
+	 */
+	private boolean complete(TestSwarmExecution execution, int jobStatus,
+			long waitStart, int minimumPassingRuns)
+			throws InterruptedException {
+		AbstractBuild<?, ?> build = execution.getBuild();
+		BuildListener listener = execution.getListener();
+		build.addAction(new TestSwarmBuildAction(execution
+				.getTestswarmServerUrl(), execution.getJobIds(), System
+				.currentTimeMillis() - waitStart, jobStatus, execution
+				.getPassedSuites(minimumPassingRuns), execution.getMetrics()));
+
+		boolean jobResult = (jobStatus == ALL_PASSING || jobStatus == IN_PROGRESS_ENOUGH_PASSING_NO_ERRORS);
+
+		if (jobResult) {
+			build.setResult(Result.SUCCESS);
+		} else {
+			build.setResult(Result.FAILURE);
+		}
 
-				testResult.setDirective(new Directive(DirectiveValues.SKIP,
-						"test disabled"));
-				testSet.addTestResult(testResult);
-				i++;
-			}
+		listener.getLogger().println(
+				"Analyzing Test Suite Result COMPLETED...");
 
-			String tapStream = tapProducer.dump(testSet);
-			System.out.println(tapStream);
+		if (jobStatus == ALL_PASSING)
+			listener.getLogger().println("ALL PASSING");
+		else if (jobStatus == IN_PROGRESS_ENOUGH_PASSING_NO_ERRORS)
+			listener.getLogger()
+					.println("ALL PASSING - SOME STILL RUNNING");
+		else if (jobStatus == IN_PROGRESS_NOT_ENOUGH_PASSING_NO_ERRORS)
+			listener.getLogger().println("FAILURE - NOT ENOUGH FINISHED");
+		else if (jobStatus == FAILURE_DONE
+				|| jobStatus == FAILURE_IN_PROGRESS)
+			listener.getLogger().println("FAILURE");
+
+		storeResults(execution, jobStatus);
+		long reportStart = System.currentTimeMillis();
+		produceTAPReport(execution, minimumPassingRuns);
+		if (junitReport)
+			produceJUnitReport(execution);
+		execution.getMetrics().recordReport(
+				System.currentTimeMillis() - reportStart);
+		return jobResult;
+	}
 
-			// File f = new
-			// File(build.getProject().getRootDir().getAbsolutePath()
-			// + File.separatorChar + "builds" + File.separatorChar
-			// + String.valueOf(build.getNumber()) + File.separatorChar
-			// + "tap", "tap-result.txt");
+	/**
+	 * Waits for jobs submitted earlier in the build with
+	 * <tt>submitOnly</tt>, and completes the build step the way
+	 * {@link #perform} would have.
+	 *
+	 * @return true if the jobs passed
+	 */
+	boolean awaitSubmitted(TestSwarmExecution execution,
+			int minimumPassingRuns, long waitStart) {
+		try {
+			return complete(execution, await(execution), waitStart,
+					minimumPassingRuns);
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			execution.getListener().error(ex.toString());
+			execution.getBuild().setResult(Result.FAILURE);
+			return false;
+		}
+	}
 
-			File f = new File(build.getProject().getRootDir().getAbsolutePath()
-					+ File.separatorChar + "workspace", "testswarm.tap");
+	/**
+	 * Submits the selected test suites and starts polling the jobs.
+	 */
+	private void submit(TestSwarmExecution execution) throws Exception {
+		BuildListener listener = execution.getListener();
+
+		List<List<TestSuiteData>> shards = shardTestSuites(execution);
+		long submitStart = System.currentTimeMillis();
+		execution.setJobIds(submitJobs(execution, shards));
+		execution.setSubmittedAt(System.currentTimeMillis());
+		execution.getMetrics().recordSubmit(
+				execution.getSubmittedAt() - submitStart);
+
+		List<String> jobUrls = execution.getJobUrls();
+		List<String> jobFriendlyUrls = execution.getJobFriendlyUrls();
+		listener.getLogger()
+				.println(
+						"**************************************************************");
+		listener.getLogger().println(
+				"Your request is successfully posted to TestSwarm Server and "
+						+ " you can view the result in the following URL");
+		for (String jobFriendlyUrl : jobFriendlyUrls)
+			listener.getLogger().println(jobFriendlyUrl);
 
-			System.out.println("Writing TAP results to " + f.getAbsolutePath());
-			PrintWriter out = new PrintWriter(f);
-			out.write(tapStream);
-			out.close();
+		listener.getLogger().println();
 
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-
-	}
-
-	private void expandRuntimeVariables(BuildListener listener,
-			AbstractBuild build) throws IOException, InterruptedException {
-		VariableResolver<String> varResolver = build.getBuildVariableResolver();
-		EnvVars env = build.getEnvironment(listener);
-		this.jobNameCopy = Util.replaceMacro(this.getJobName(), varResolver);
-		this.jobNameCopy = Util.replaceMacro(this.jobNameCopy, env);
-		this.testswarmServerUrlCopy = Util.replaceMacro(
-				this.getTestswarmServerUrl(), varResolver);
-		this.testswarmServerUrlCopy = Util.replaceMacro(
-				this.testswarmServerUrlCopy, env);
-
-		for (int i = testSuiteListCopy.length - 1; i >= 0; i--) {
-			// Ignore testcase if disbled
-			if (!testSuiteListCopy[i].isDisableTest()) {
-				testSuiteListCopy[i].setTestName(Util.replaceMacro(
-						testSuiteListCopy[i].getTestName(), varResolver));
-				testSuiteListCopy[i].setTestName(Util.replaceMacro(
-						testSuiteListCopy[i].getTestName(), env));
-				testSuiteListCopy[i].setTestUrl(Util.replaceMacro(
-						testSuiteListCopy[i].getTestUrl(), varResolver));
-				testSuiteListCopy[i].setTestUrl(Util.replaceMacro(
-						testSuiteListCopy[i].getTestUrl(), env));
-			}
-		}
+		for (String jobUrl : jobUrls)
+			listener.getLogger().println(jobUrl);
+		listener.getLogger()
+				.println(
+						"**************************************************************");
+		listener.getLogger().println("");
+		listener.getLogger().println("Analyzing Test Suite Result....");
+		analyzeTestSuiteResults(execution);
 	}
 
-	private void populateStaticDataInRequestString(StringBuffer requestStr)
-			throws Exception {
+	/**
+	 * Waits for the submitted jobs to settle.
+	 */
+	private int await(TestSwarmExecution execution) throws Exception {
+		TestSwarmJobPoll poll = execution.getPoll();
+		try {
+			int jobStatus = poll.awaitResult();
+			execution.getMetrics().recordResults(poll.getTimings(),
+					execution.getSubmittedAt());
+			return jobStatus;
+		} finally {
+			for (String jobUrl : execution.getJobUrls())
+				TestSwarmHttpClient.get().forget(jobUrl);
+			// failed or decided jobs stay on the server for the report links
+			int[] jobIds = execution.getJobIds();
+			for (int i = 0; i < jobIds.length; i++)
+				JobRegistry.get().release(execution.getTestswarmServerUrl(),
+						jobIds[i], execution.getBuild(),
+						poll.isJobPassed(i),
+						poll.isAbandoned() && !poll.isJobFinished(i),
+						execution.getListener().getLogger());
+		}
+	}
 
-		// Populate static data like user credentials and other properties
-		requestStr.append("client_id=").append(CLIENT_ID).append("&state=")
-				.append(STATE).append("&job_name=")
-				.append(URLEncoder.encode(this.jobNameCopy, CHAR_ENCODING))
-				.append("&user=").append(getProjectId()).append("&auth=")
-				.append(getAuthToken()).append("&max=").append(getMaxRuns())
-				.append("&browsers=").append(getChooseBrowsers());
+	private void storeResults(TestSwarmExecution execution, int jobStatus) {
+		JobSnapshot snapshot = execution.getSnapshot();
+		if (snapshot == null)
+			return;
+		try {
+			ResultStore.save(execution.getBuild(), snapshot,
+					execution.getTimings(), jobStatus);
+		} catch (IOException ex) {
+			execution.getListener().error(
+					"Could not store the TestSwarm results: " + ex);
+		}
 	}
 
-	private String buildTestSuitesQueryString() throws Exception {
-		StringBuffer requestStr = new StringBuffer();
+	private void produceTAPReport(TestSwarmExecution execution,
+			int minimumPassing) throws InterruptedException {
+		BuildListener listener = execution.getListener();
+		FilePath workspace = execution.getBuild().getWorkspace();
+		if (workspace == null) {
+			listener.error("No workspace to write the TAP results to");
+			return;
+		}
+
+		try {
+			TapReport report = new TapReport(execution.getSnapshot(),
+					minimumPassing, execution.getJobFriendlyUrls(),
+					execution.getReusedSuites(),
+					execution.getDisabledTestSuites());
 
-		for (int i = 0; i < testSuiteListCopy.length; i++) {
-			// Ignore testcase if disbled
-			if (!testSuiteListCopy[i].isDisableTest()) {
-				encodeAndAppendTestSuiteUrl(requestStr,
-						testSuiteListCopy[i].getTestName(),
-						testSuiteListCopy[i].getTestUrl(),
-						testSuiteListCopy[i].isTestCacheCracker());
+			// written straight to the node the build ran on
+			FilePath tapFile = workspace.child("testswarm.tap");
+			listener.getLogger().println(
+					"Writing TAP results to " + tapFile.getRemote());
+			TapWriter tap = new TapWriter(new BufferedWriter(
+					new OutputStreamWriter(tapFile.write(), "UTF-8")));
+			try {
+				report.write(tap);
+			} finally {
+				tap.close();
 			}
+
+		} catch (IOException e) {
+			listener.error("Could not write the TAP results: " + e);
 		}
 
-		return requestStr.toString();
 	}
 
-	private void encodeAndAppendTestSuiteUrl(StringBuffer requestStr,
-			String testName, String testSuiteUrl, boolean cacheCrackerEnabled)
-			throws Exception {
+	private void produceJUnitReport(TestSwarmExecution execution)
+			throws InterruptedException {
+		BuildListener listener = execution.getListener();
+		FilePath workspace = execution.getBuild().getWorkspace();
+		if (workspace == null) {
+			listener.error("No workspace to write the JUnit results to");
+			return;
+		}
 
-		requestStr.append("&")
-				.append(URLEncoder.encode("runNames[]", CHAR_ENCODING))
-				.append("=").append(URLEncoder.encode(testName, CHAR_ENCODING))
-				.append("&")
-				.append(URLEncoder.encode("runUrls[]", CHAR_ENCODING))
-				.append("=");
-		requestStr.append(URLEncoder.encode(testSuiteUrl, CHAR_ENCODING));
-		if (cacheCrackerEnabled) {
-			if (testSuiteUrl.contains("?"))
-				requestStr.append(URLEncoder.encode("&", CHAR_ENCODING));
-			else
-				requestStr.append(URLEncoder.encode("?", CHAR_ENCODING));
+		try {
+			FilePath junitFile = workspace.child("testswarm-junit.xml");
+			listener.getLogger().println(
+					"Writing JUnit results to " + junitFile.getRemote());
+			OutputStream out = new BufferedOutputStream(junitFile.write());
+			try {
+				new JUnitReportWriter(out).write(execution);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			listener.error("Could not write the JUnit results: " + e);
+		}
+	}
 
-			requestStr
-					.append(URLEncoder.encode(
-							"cache_killer=" + System.currentTimeMillis(),
-							CHAR_ENCODING));
+	/**
+	 * Splits the enabled test suites into groups of at most
+	 * <tt>suitesPerJob</tt>, each submitted as its own TestSwarm job.
+	 */
+	private List<List<TestSuiteData>> shardTestSuites(
+			TestSwarmExecution execution) {
+		List<TestSuiteData> enabledTests = execution.getSubmittedTestSuites();
+
+		int shardSize = enabledTests.size();
+		if (suitesPerJob != null && suitesPerJob.trim().length() > 0)
+			shardSize = Integer.parseInt(suitesPerJob.trim());
+
+		List<List<TestSuiteData>> shards = new ArrayList<List<TestSuiteData>>();
+		if (shardSize <= 0 || shardSize >= enabledTests.size()) {
+			shards.add(enabledTests);
+			return shards;
 		}
+		for (int from = 0; from < enabledTests.size(); from += shardSize) {
+			shards.add(enabledTests.subList(from,
+					Math.min(from + shardSize, enabledTests.size())));
+		}
+		return shards;
 	}
 
-	@SuppressWarnings("unchecked")
-	private int analyzeTestSuiteResults(String jobUrl, AbstractBuild build,
-			BuildListener listener) throws Exception {
+	/**
+	 * Submits one TestSwarm job per shard, concurrently when there is more
+	 * than one, and returns the job ids in shard order.
+	 */
+	private int[] submitJobs(final TestSwarmExecution execution,
+			List<List<TestSuiteData>> shards) throws Exception {
+		BuildListener listener = execution.getListener();
+		List<Integer> results;
+		if (shards.size() == 1) {
+			results = new ArrayList<Integer>();
+			results.add(submitJob(execution, execution.getJobName(),
+					shards.get(0)));
+		} else {
+			listener.getLogger().println(
+					"Submitting test suites as " + shards.size() + " jobs");
+			List<Callable<Integer>> submissions = new ArrayList<Callable<Integer>>();
+			for (int i = 0; i < shards.size(); i++) {
+				final String shardJobName = execution.getJobName() + " ("
+						+ (i + 1) + "/"
+						+ shards.size() + ")";
+				final List<TestSuiteData> shard = shards.get(i);
+				submissions.add(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						return submitJob(execution, shardJobName, shard);
+					}
+				});
+			}
+			results = JobRegistry.get().submitAll(
+					execution.getTestswarmServerUrl(), submissions,
+					execution.getBuild(), listener.getLogger());
+		}
 
-		long secondsBetweenResultPolls = Long
-				.parseLong(getPollingIntervalInSecs());
-		long minutesTimeOut = Long.parseLong(getTimeOutPeriodInMins());
+		int[] jobIds = new int[results.size()];
+		for (int i = 0; i < jobIds.length; i++)
+			jobIds[i] = results.get(i);
+		return jobIds;
+	}
 
-		long start = System.currentTimeMillis();
-		// give testswarm 15 seconds to finish earlier activities
-		try {
-			Thread.sleep(15 * 1000);
-		} catch (InterruptedException ex) {
-			// ignore
+	/**
+	 * Submits one job, or with <tt>reuseWindowInMins</tt> set uses the job
+	 * of another build which submitted the same suites, see
+	 * {@link JobRegistry#submit}.
+	 */
+	private int submitJob(final TestSwarmExecution execution, String name,
+			final List<TestSuiteData> testSuites) throws Exception {
+		final BuildListener listener = execution.getListener();
+		final AddJobRequest request = new AddJobRequest(projectId, authToken,
+				name, maxRuns, chooseBrowsers, testSuites, CHAR_ENCODING);
+
+		if (debugLogging) {
+			request.logTo(listener.getLogger());
+			listener.getLogger().println();
 		}
-		String json;
-		int jobStatus = UNKNOWN;
-		while (start + (minutesTimeOut * 60000) > System.currentTimeMillis()
-				&& jobStatus != ALL_PASSING && jobStatus != FAILURE_DONE) {
-			json = this.resultsAnalyzer.grabPage(jobUrl);
 
-			System.out.println(json);
+		Callable<Integer> addJob = new Callable<Integer>() {
+			public Integer call() throws Exception {
+				int jobId = TestSwarmHttpClient.get().post(
+						execution.getAddJobUrl(), request, request);
+				listener.getLogger().println(
+						"Submitted " + testSuites.size()
+								+ " test suites as job " + jobId);
+				return jobId;
+			}
+		};
+		if (reuseWindowInMins != null
+				&& reuseWindowInMins.trim().length() > 0
+				&& Integer.parseInt(reuseWindowInMins.trim()) > 0)
+			return JobRegistry.get().submit(
+					execution.getTestswarmServerUrl(), request.getReuseKey(),
+					Integer.parseInt(reuseWindowInMins.trim()) * 60000L,
+					projectId, authToken, execution.getBuild(), addJob,
+					listener.getLogger());
+
+		int jobId = addJob.call();
+		JobRegistry.get().register(execution.getTestswarmServerUrl(), jobId,
+				null, projectId, authToken, execution.getBuild());
+		return jobId;
+	}
 
-			ObjectMapper mapper = new ObjectMapper(); // can reuse, share
-			// globally
+	private TestSwarmJobPoll analyzeTestSuiteResults(
+			TestSwarmExecution execution) throws Exception {
 
-			Map<String, Object> resultMap = mapper.readValue(json, Map.class);
+		long secondsBetweenResultPolls = Long
+				.parseLong(getPollingIntervalInSecs());
+		long minutesTimeOut = Long.parseLong(getTimeOutPeriodInMins());
 
-			jobStatus = resultsAnalyzer.jobStatus(resultMap,
-					Integer.parseInt(minimumPassing), listener);
-			if (jobStatus != ALL_PASSING && jobStatus != FAILURE_DONE) {
+		long start = System.currentTimeMillis();
+		// no earlier than recent builds finished or the swarm can get to it
+		long recentWait = Math.max(TestSwarmBuildAction
+				.shortestRecentWait(execution.getBuild()), execution
+				.getExpectedWait());
+		PollingPolicy pollingPolicy = new PollingPolicy(
+				secondsBetweenResultPolls * 1000, recentWait > 0 ? start
+						+ recentWait : 0);
+		TestSwarmJobPoll poll = new TestSwarmJobPoll(execution.getJobUrls(),
+				Integer.parseInt(minimumPassing), failFast, pollingPolicy,
+				start + (minutesTimeOut * 60000), this.resultsAnalyzer,
+				execution.getListener(), debugLogging);
+		if (maxRetries != null && maxRetries.trim().length() > 0
+				&& Integer.parseInt(maxRetries.trim()) > 0)
+			poll.setRetryPolicy(new RetryPolicy(Integer.parseInt(maxRetries
+					.trim()), RetryPolicy
+					.parseStatuses(getRetryStatusesOrDefault()),
+					submittedJobs(execution), new RetryPolicy.ApiRunWiper(
+							execution.getTestswarmServerUrl(), execution
+									.getJobIds(), projectId, authToken)));
+		if (earlyExit != null && earlyExit.trim().length() > 0)
+			poll.setEarlyExitPolicy(EarlyExitPolicy.parse(earlyExit));
+		poll.setMetrics(execution.getMetrics());
+		execution.setPoll(poll);
+
+		return TestSwarmPoller.get().start(poll,
+				pollingPolicy.firstDelay(start));
 
-				listener.getLogger().println(
-						"Sleeping for " + secondsBetweenResultPolls
-								+ " seconds...");
-				listener.getLogger().println();
-				Thread.sleep(secondsBetweenResultPolls * 1000);
-				listener.getLogger().println();
-			}
-		}
+	}
 
-		return jobStatus;
+	private String getRetryStatusesOrDefault() {
+		if (retryStatuses == null || retryStatuses.trim().length() == 0)
+			return "error, timeout";
+		return retryStatuses;
+	}
 
+	/**
+	 * @return by job index, true for the jobs the build submitted itself
+	 *         rather than shares with the build which did
+	 */
+	private static boolean[] submittedJobs(TestSwarmExecution execution) {
+		int[] jobIds = execution.getJobIds();
+		boolean[] submitted = new boolean[jobIds.length];
+		for (int i = 0; i < jobIds.length; i++)
+			submitted[i] = JobRegistry.get().isSubmitter(
+					execution.getTestswarmServerUrl(), jobIds[i],
+					execution.getBuild());
+		return submitted;
 	}
 
 	/**
@@ -705,7 +990,11 @@ public class TestSwarmBuilder extends Builder {
 	// extension point.
 	public static final class DescriptorImpl extends
 			BuildStepDescriptor<Builder> {
-	
+
+		// timeouts of every request made to a TestSwarm server
+		private int connectTimeoutInSecs = 30;
+
+		private int readTimeoutInSecs = 60;
 
 		public boolean isApplicable(Class<? extends AbstractProject> aClass) {
 			// indicates that this builder can be used with all kinds of project
@@ -720,10 +1009,43 @@ public class TestSwarmBuilder extends Builder {
 			return "TestSwarm Integration Test";
 		}
 
+		public int getConnectTimeoutInSecs() {
+			return connectTimeoutInSecs;
+		}
+
+		public int getReadTimeoutInSecs() {
+			return readTimeoutInSecs;
+		}
+
+		public FormValidation doCheckConnectTimeoutInSecs(
+				@QueryParameter String value) {
+			return checkPositiveInteger(value);
+		}
+
+		public FormValidation doCheckReadTimeoutInSecs(
+				@QueryParameter String value) {
+			return checkPositiveInteger(value);
+		}
+
+		private FormValidation checkPositiveInteger(String value) {
+			try {
+				if (Integer.parseInt(value) > 0)
+					return FormValidation.ok();
+			} catch (NumberFormatException ex) {
+				// fall through
+			}
+			return FormValidation.error("Please enter a positive integer");
+		}
+
 		@Override
 		public boolean configure(StaplerRequest req, JSONObject formData)
 				throws FormException {
-		
+			connectTimeoutInSecs = formData.optInt("connectTimeoutInSecs",
+					connectTimeoutInSecs);
+			readTimeoutInSecs = formData.optInt("readTimeoutInSecs",
+					readTimeoutInSecs);
+			save();
+			applyTimeouts();
 			return super.configure(req, formData);
 		}
 
@@ -736,8 +1058,13 @@ public class TestSwarmBuilder extends Builder {
 		public DescriptorImpl() {
 			super(TestSwarmBuilder.class);
 			load();
+			applyTimeouts();
 		}
 
+		private void applyTimeouts() {
+			TestSwarmHttpClient.get().setTimeouts(connectTimeoutInSecs,
+					readTimeoutInSecs);
+		}
 
 	}
 
@@ -756,13 +1083,18 @@ public class TestSwarmBuilder extends Builder {
 		@Exported
 		public boolean disableTest;
 
+		// workspace files the suite depends on, for incremental builds
+		@Exported
+		public String testFiles;
+
 		@DataBoundConstructor
 		public TestSuiteData(String testName, String testUrl,
-				boolean testCacheCracker, boolean disableTest) {
+				boolean testCacheCracker, boolean disableTest, String testFiles) {
 			this.testName = testName;
 			this.testUrl = testUrl;
 			this.testCacheCracker = testCacheCracker;
 			this.disableTest = disableTest;
+			this.testFiles = testFiles;
 		}
 
 		public void setTestName(String testName) {
@@ -794,6 +1126,10 @@ public class TestSwarmBuilder extends Builder {
 			return disableTest;
 		}
 
+		public String getTestFiles() {
+			return testFiles;
+		}
+
 	}
 
 }
@@ -1,155 +1,133 @@
 package com.javaclimber.jenkins.testswarmplugin;
 
-import hudson.model.BuildListener;
-
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.PrintStream;
+import java.util.Arrays;
 
 public class TestSwarmDecisionMaker {
 
-	@SuppressWarnings("deprecation")
-	public String grabPage(String url) throws IOException {
+	/**
+	 * Evaluates a job snapshot, folding the statuses of every run into
+	 * primitive counters.
+	 * 
+	 * TestSwarm puts a failed run back in the queue until it has been tried
+	 * <tt>maxRuns</tt> times, so a run reported as failed or errored in a
+	 * user agent is final there. A job is settled once no run is new or in
+	 * progress anywhere; a failing job is reported as
+	 * {@link TestSwarmBuilder#FAILURE_DONE} once it is settled, or as soon as
+	 * the first failure shows up when <tt>failFast</tt> is set.
+	 * 
+	 * @param log
+	 *            where the details of every run are printed, or null to
+	 *            evaluate quietly
+	 */
+	public int jobStatus(JobSnapshot snapshot, int minimumPassing,
+			boolean failFast, PrintStream log) {
 
-		URL u;
-		InputStream is = null;
-		DataInputStream dis = null;
-		String s;
-		StringBuffer result = new StringBuffer();
-
-		try {
+		int allRunStatus = 0;
+		boolean failing = false;
+		boolean settled = true;
+		int[] resultCount = new int[RunStatus.count()];
 
-			u = new URL(url);
-			is = u.openStream();
-			dis = new DataInputStream(new BufferedInputStream(is));
+		for (JobSnapshot.Run run : snapshot.getRuns()) {
+			Arrays.fill(resultCount, 0);
+			run.countStatuses(resultCount);
 
-			while ((s = dis.readLine()) != null) {
-				result.append(s).append("\n");
+			if (log != null) {
+				log.println(run.getName());
+				log.println(format(resultCount));
 			}
-		} finally {
-			if (dis != null)
-				dis.close();
-			if (is != null)
-				is.close();
-		}
-		return result.toString();
-	}
-
-	@SuppressWarnings("unchecked")
-	public int jobStatus(Map<String, Object> resultMap, int minimumPassing,
-			BuildListener listener) {
 
-		Map<String, Object> job = (Map<String, Object>) resultMap.get("job");
-		List<Map<String, Object>> runs = (ArrayList<Map<String, Object>>) job
-				.get("runs");
+			if (resultCount[RunStatus.NEW.ordinal()] > 0
+					|| resultCount[RunStatus.PROGRESS.ordinal()] > 0)
+				settled = false;
 
-		int allRunStatus = 0;
-		for (Map<String, Object> run : runs) {
-
-			listener.getLogger().println(
-					((Map<String, Object>) run.get("info")).get("name"));
-
-			Map<String, Integer> resultCount = new HashMap<String, Integer>();
-			Map<String, Object> uaRuns = (Map<String, Object>) run
-					.get("uaRuns");
-			for (String ua : uaRuns.keySet()) {
-				Map<String, Object> uaRun = (Map<String, Object>) uaRuns
-						.get(ua);
-				String runStatus = (String) uaRun.get("runStatus");
-				Integer resultTypeCount = resultCount.get(runStatus);
-				if (resultTypeCount == null) {
-					resultTypeCount = new Integer(0);
-				}
-				resultTypeCount++;
-				resultCount.put(runStatus, resultTypeCount);
-			}
-			resultCount.remove("new");
-			listener.getLogger().println(resultCount);
-
-			int runStatus = checkRunStatus(resultCount, minimumPassing,
-					listener);
-			if (runStatus > allRunStatus
-					|| runStatus == TestSwarmBuilder.FAILURE_IN_PROGRESS)
+			int runStatus = checkRunStatus(resultCount, minimumPassing, log);
+			if (runStatus == TestSwarmBuilder.FAILURE_IN_PROGRESS
+					|| runStatus == TestSwarmBuilder.FAILURE_DONE)
+				failing = true;
+			else if (runStatus > allRunStatus)
 				allRunStatus = runStatus;
+		}
 
+		if (failing)
+			return settled || failFast ? TestSwarmBuilder.FAILURE_DONE
+					: TestSwarmBuilder.FAILURE_IN_PROGRESS;
+
+		if (settled
+				&& allRunStatus == TestSwarmBuilder.IN_PROGRESS_NOT_ENOUGH_PASSING_NO_ERRORS) {
+			// nothing left to run, the missing passes will never come
+			if (log != null)
+				log.println("all runs finished without enough passing");
+			return TestSwarmBuilder.FAILURE_DONE;
 		}
 
 		return allRunStatus;
 
 	}
 
-	private int checkRunStatus(Map<String, Integer> runResult,
-			int minimumPassing, BuildListener listener) {
-
-		if (runResult.keySet().size() == 0) {
-			listener.getLogger().println("NO RESULTS FOUND");
-			// buildSuccessful = false;
-			return TestSwarmBuilder.IN_PROGRESS_NOT_ENOUGH_PASSING_NO_ERRORS;
+	private static String format(int[] resultCount) {
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < resultCount.length; i++) {
+			if (resultCount[i] == 0 || i == RunStatus.NEW.ordinal())
+				continue;
+			if (sb.length() > 1)
+				sb.append(", ");
+			sb.append(RunStatus.valueOf(i).getApiName()).append('=')
+					.append(resultCount[i]);
 		}
+		return sb.append('}').toString();
+	}
 
-		Integer notstarted = runResult.get("new");
-		Integer pass = runResult.get("passed");
-		Integer progress = runResult.get("progress");
-		Integer error = runResult.get("error");
-		Integer fail = runResult.get("failed");
-		Integer timeout = runResult.get("timeout");
-
-		if (error != null && error.intValue() > 0) {
-			listener.getLogger().println(
-					error.intValue() + " test suites ends with ERROR");
-
-			int passCount = 0;
-			if (pass != null)
-				passCount = pass.intValue();
-
-			// TODO should consider fail
-			if ((error.intValue() + passCount) < minimumPassing)
-				return TestSwarmBuilder.FAILURE_IN_PROGRESS;
-			else
-				// TODO need to check all tests to determine if done
-				// return TestSwarmBuilder.FAILURE_DONE;
-				return TestSwarmBuilder.FAILURE_IN_PROGRESS;
+	private int checkRunStatus(int[] runResult, int minimumPassing,
+			PrintStream log) {
 
+		int pass = runResult[RunStatus.PASSED.ordinal()];
+		int progress = runResult[RunStatus.PROGRESS.ordinal()];
+		int error = runResult[RunStatus.ERROR.ordinal()];
+		int fail = runResult[RunStatus.FAILED.ordinal()];
+		int timeout = runResult[RunStatus.TIMEOUT.ordinal()];
+
+		int started = 0;
+		for (int i = 0; i < runResult.length; i++) {
+			if (i != RunStatus.NEW.ordinal())
+				started += runResult[i];
+		}
+		if (started == 0) {
+			if (log != null)
+				log.println("NO RESULTS FOUND");
+			// buildSuccessful = false;
+			return TestSwarmBuilder.IN_PROGRESS_NOT_ENOUGH_PASSING_NO_ERRORS;
 		}
 
-		if (fail != null && fail.intValue() > 0) {
-			listener.getLogger().println(
-					fail.intValue() + " test suites ends with FAILURE");
-
-			int passCount = 0;
-			if (pass != null)
-				passCount = pass.intValue();
-
-			// TODO should consider errors
-			if ((fail.intValue() + passCount) < minimumPassing)
-				return TestSwarmBuilder.FAILURE_IN_PROGRESS;
-			else
-				// TODO need to check all tests to determine if done
-				// return TestSwarmBuilder.FAILURE_DONE;
-				return TestSwarmBuilder.FAILURE_IN_PROGRESS;
+		if (error > 0 || fail > 0) {
+			if (log != null && error > 0)
+				log.println(error + " test suites ends with ERROR");
+			if (log != null && fail > 0)
+				log.println(fail + " test suites ends with FAILURE");
+
+			// failed attempts are retried by TestSwarm up to maxRuns times,
+			// so these are final
+			if (progress == 0 && runResult[RunStatus.NEW.ordinal()] == 0)
+				return TestSwarmBuilder.FAILURE_DONE;
+			return TestSwarmBuilder.FAILURE_IN_PROGRESS;
 		}
 
-		if (timeout != null && timeout.intValue() > 0) {
-			listener.getLogger().println(
-					timeout.intValue() + " test suites ends with TIMED OUT");
+		if (log != null && timeout > 0) {
+			log.println(timeout + " test suites ends with TIMED OUT");
 			// I think we can ignore this, but in some cases this could mean
 			// failure
 		}
 
-		if (pass == null || pass.intValue() < minimumPassing) {
-			listener.getLogger().println(
-					"not enough passing: " + pass + " < " + minimumPassing);
+		if (pass < minimumPassing) {
+			if (log != null)
+				log.println("not enough passing: " + pass + " < "
+						+ minimumPassing);
 			return TestSwarmBuilder.IN_PROGRESS_NOT_ENOUGH_PASSING_NO_ERRORS;
 		}
 
-		if (progress != null && progress.intValue() > 0) {
-			listener.getLogger().println("progress " + progress);
+		if (progress > 0) {
+			if (log != null)
+				log.println("progress " + progress);
 			return TestSwarmBuilder.IN_PROGRESS_ENOUGH_PASSING_NO_ERRORS;
 		}
 
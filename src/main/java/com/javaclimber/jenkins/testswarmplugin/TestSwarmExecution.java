@@ -0,0 +1,408 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.util.VariableResolver;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmBuilder.TestSuiteData;
+
+/**
+ * Everything one build of a {@link TestSwarmBuilder} works with: the
+ * configuration with build variables expanded, the jobs it submitted and the
+ * poll watching them. The builder itself only holds configuration, so
+ * concurrent builds of the same project, and the shards of one build, never
+ * see each other's values.
+ */
+public class TestSwarmExecution {
+
+	private final AbstractBuild<?, ?> build;
+
+	private final BuildListener listener;
+
+	private final String testswarmServerUrl;
+
+	private final String jobName;
+
+	private final TestSuiteData[] testSuites;
+
+	// fingerprint per suite, only computed for incremental builds
+	private String[] fingerprints;
+
+	// results of earlier builds used instead of submitting the suite
+	private SuiteOutcome[] reused;
+
+	private volatile int[] jobIds = new int[0];
+
+	private volatile TestSwarmJobPoll poll;
+
+	private final BuildMetrics metrics = new BuildMetrics();
+
+	// how long the swarm is expected to take for the job, 0 if unknown
+	private long expectedWait;
+
+	private volatile long submittedAt;
+
+	TestSwarmExecution(AbstractBuild<?, ?> build,
+			BuildListener listener, String testswarmServerUrl, String jobName,
+			TestSuiteData[] testSuites) {
+		this.build = build;
+		this.listener = listener;
+		this.testswarmServerUrl = testswarmServerUrl;
+		this.jobName = jobName;
+		this.testSuites = testSuites;
+	}
+
+	/**
+	 * Copies the configuration of the builder, resolving build variables and
+	 * environment variables in the server url, job name and enabled test
+	 * suites.
+	 */
+	public static TestSwarmExecution expand(TestSwarmBuilder builder,
+			AbstractBuild<?, ?> build, BuildListener listener)
+			throws IOException, InterruptedException {
+		VariableResolver<String> varResolver = build.getBuildVariableResolver();
+		EnvVars env = build.getEnvironment(listener);
+
+		TestSuiteData[] testSuiteList = builder.getTestSuiteList();
+		TestSuiteData[] testSuites = new TestSuiteData[testSuiteList.length];
+		for (int i = 0; i < testSuiteList.length; i++) {
+			TestSuiteData origData = testSuiteList[i];
+			TestSuiteData copyData = new TestSuiteData(origData.testName,
+					origData.testUrl, origData.testCacheCracker,
+					origData.disableTest, origData.testFiles);
+
+			if (origData.disableTest) {
+				listener.getLogger().println(
+						"Test is disabled for : " + origData.testName);
+			} else {
+				copyData.setTestName(expand(copyData.getTestName(),
+						varResolver, env));
+				copyData.setTestUrl(expand(copyData.getTestUrl(), varResolver,
+						env));
+			}
+			testSuites[i] = copyData;
+		}
+
+		return new TestSwarmExecution(build, listener, expand(
+				builder.getTestswarmServerUrl(), varResolver, env), expand(
+				builder.getJobName(), varResolver, env), testSuites);
+	}
+
+	private static String expand(String value,
+			VariableResolver<String> varResolver, EnvVars env) {
+		return Util.replaceMacro(Util.replaceMacro(value, varResolver), env);
+	}
+
+	public AbstractBuild<?, ?> getBuild() {
+		return build;
+	}
+
+	public BuildListener getListener() {
+		return listener;
+	}
+
+	public String getTestswarmServerUrl() {
+		return testswarmServerUrl;
+	}
+
+	public String getJobName() {
+		return jobName;
+	}
+
+	/**
+	 * @return the enabled suites which are submitted to TestSwarm, that is
+	 *         all of them unless {@link #selectIncremental} reused some
+	 */
+	public List<TestSuiteData> getSubmittedTestSuites() {
+		List<TestSuiteData> submitted = new ArrayList<TestSuiteData>();
+		for (int i = 0; i < testSuites.length; i++) {
+			if (!testSuites[i].isDisableTest()
+					&& (reused == null || reused[i] == null))
+				submitted.add(testSuites[i]);
+		}
+		return submitted;
+	}
+
+	/**
+	 * @return the earlier results used in place of submitting a suite
+	 */
+	public List<SuiteOutcome> getReusedSuites() {
+		List<SuiteOutcome> reusedSuites = new ArrayList<SuiteOutcome>();
+		if (reused != null) {
+			for (SuiteOutcome outcome : reused) {
+				if (outcome != null)
+					reusedSuites.add(outcome);
+			}
+		}
+		return reusedSuites;
+	}
+
+	public List<TestSuiteData> getDisabledTestSuites() {
+		List<TestSuiteData> disabledTests = new ArrayList<TestSuiteData>();
+		for (TestSuiteData testSuite : testSuites) {
+			if (testSuite.isDisableTest())
+				disabledTests.add(testSuite);
+		}
+		return disabledTests;
+	}
+
+	public String getAddJobUrl() {
+		return testswarmServerUrl + "/api.php?action=addjob";
+	}
+
+	public int[] getJobIds() {
+		return jobIds.clone();
+	}
+
+	public void setJobIds(int[] jobIds) {
+		this.jobIds = jobIds.clone();
+	}
+
+	/**
+	 * @return the API urls of the submitted jobs
+	 */
+	public List<String> getJobUrls() {
+		List<String> jobUrls = new ArrayList<String>();
+		for (int jobId : jobIds)
+			jobUrls.add(testswarmServerUrl
+					+ "/api.php?format=json&action=job&item=" + jobId);
+		return jobUrls;
+	}
+
+	/**
+	 * @return the TestSwarm pages of the submitted jobs
+	 */
+	public List<String> getJobFriendlyUrls() {
+		List<String> jobFriendlyUrls = new ArrayList<String>();
+		for (int jobId : jobIds)
+			jobFriendlyUrls.add(testswarmServerUrl + "/job/" + jobId);
+		return jobFriendlyUrls;
+	}
+
+	/**
+	 * @return how long the swarm is expected to take for the submitted
+	 *         suites in milliseconds, or 0 if unknown
+	 */
+	public long getExpectedWait() {
+		return expectedWait;
+	}
+
+	public void setExpectedWait(long expectedWait) {
+		this.expectedWait = expectedWait;
+	}
+
+	/**
+	 * @return when the last job was submitted
+	 */
+	public long getSubmittedAt() {
+		return submittedAt;
+	}
+
+	public void setSubmittedAt(long submittedAt) {
+		this.submittedAt = submittedAt;
+	}
+
+	public BuildMetrics getMetrics() {
+		return metrics;
+	}
+
+	public TestSwarmJobPoll getPoll() {
+		return poll;
+	}
+
+	public void setPoll(TestSwarmJobPoll poll) {
+		this.poll = poll;
+	}
+
+	/**
+	 * Fingerprints the enabled suites and picks the ones that can be skipped:
+	 * a suite is reused when an earlier build recorded it as passed in at
+	 * least <tt>minimumPassing</tt> user agents with the same fingerprint.
+	 * Anything new, changed or not passing before is submitted.
+	 *
+	 * @param previous
+	 *            suites recorded as passed by the previous build, may be
+	 *            null
+	 */
+	public void selectIncremental(String browserSet, int minimumPassing,
+			List<SuiteOutcome> previous) throws IOException,
+			InterruptedException {
+		Map<String, SuiteOutcome> passed = new HashMap<String, SuiteOutcome>();
+		if (previous != null) {
+			for (SuiteOutcome outcome : previous)
+				passed.put(outcome.getFingerprint(), outcome);
+		}
+
+		fingerprints = new String[testSuites.length];
+		reused = new SuiteOutcome[testSuites.length];
+		for (int i = 0; i < testSuites.length; i++) {
+			if (testSuites[i].isDisableTest())
+				continue;
+			fingerprints[i] = fingerprint(testSuites[i], browserSet);
+			SuiteOutcome outcome = passed.get(fingerprints[i]);
+			if (outcome != null
+					&& outcome.getPassedIn().length >= minimumPassing)
+				reused[i] = outcome;
+		}
+	}
+
+	/**
+	 * Reorders the suites, and with them the runs of the submitted jobs, by
+	 * their expanded names. The sort is stable, suites the order does not
+	 * tell apart keep the configured order.
+	 */
+	public void reorder(final Comparator<String> order) {
+		Integer[] positions = new Integer[testSuites.length];
+		for (int i = 0; i < positions.length; i++)
+			positions[i] = i;
+		Arrays.sort(positions, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return order.compare(testSuites[a].getTestName(),
+						testSuites[b].getTestName());
+			}
+		});
+
+		TestSuiteData[] sortedSuites = testSuites.clone();
+		String[] sortedFingerprints = fingerprints == null ? null
+				: fingerprints.clone();
+		SuiteOutcome[] sortedReused = reused == null ? null : reused.clone();
+		for (int i = 0; i < positions.length; i++) {
+			sortedSuites[i] = testSuites[positions[i]];
+			if (sortedFingerprints != null)
+				sortedFingerprints[i] = fingerprints[positions[i]];
+			if (sortedReused != null)
+				sortedReused[i] = reused[positions[i]];
+		}
+		System.arraycopy(sortedSuites, 0, testSuites, 0, testSuites.length);
+		fingerprints = sortedFingerprints;
+		reused = sortedReused;
+	}
+
+	/**
+	 * Digest of everything that decides the outcome of a suite: its expanded
+	 * name and url, the browser set and the content of the workspace files
+	 * matching its <tt>testFiles</tt> pattern.
+	 */
+	private String fingerprint(TestSuiteData testSuite, String browserSet)
+			throws IOException, InterruptedException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+		update(digest, testSuite.getTestName());
+		update(digest, testSuite.getTestUrl());
+		update(digest, browserSet);
+
+		FilePath workspace = build.getWorkspace();
+		String testFiles = Util.fixEmptyAndTrim(testSuite.getTestFiles());
+		if (workspace != null && testFiles != null) {
+			FilePath[] files = workspace.list(testFiles);
+			Arrays.sort(files, new Comparator<FilePath>() {
+				public int compare(FilePath a, FilePath b) {
+					return a.getRemote().compareTo(b.getRemote());
+				}
+			});
+			int prefix = workspace.getRemote().length();
+			for (FilePath file : files) {
+				update(digest, file.getRemote().substring(prefix));
+				update(digest, file.digest());
+			}
+		}
+		return Util.toHexString(digest.digest());
+	}
+
+	private static void update(MessageDigest digest, String value)
+			throws IOException {
+		if (value != null)
+			digest.update(value.getBytes("UTF-8"));
+		digest.update((byte) 0);
+	}
+
+	/**
+	 * Suites that passed in this build, carried forward ones included, for
+	 * the next incremental build to reuse. Returns null unless the suites
+	 * were selected incrementally.
+	 */
+	public List<SuiteOutcome> getPassedSuites(int minimumPassing) {
+		if (fingerprints == null)
+			return null;
+
+		List<SuiteOutcome> passedSuites = getReusedSuites();
+		JobSnapshot fresh = poll == null ? null : poll.getSnapshot();
+		List<String> submitted = new ArrayList<String>();
+		for (int i = 0; i < testSuites.length; i++) {
+			if (fingerprints[i] != null && reused[i] == null)
+				submitted.add(fingerprints[i]);
+		}
+		// runs come back in the order the suites were submitted
+		if (fresh == null || fresh.getRunCount() != submitted.size())
+			return passedSuites;
+
+		int[] counts = new int[RunStatus.count()];
+		for (int i = 0; i < fresh.getRunCount(); i++) {
+			JobSnapshot.Run run = fresh.getRun(i);
+			Arrays.fill(counts, 0);
+			run.countStatuses(counts);
+			if (counts[RunStatus.PASSED.ordinal()] < minimumPassing
+					|| counts[RunStatus.FAILED.ordinal()] > 0
+					|| counts[RunStatus.ERROR.ordinal()] > 0
+					|| counts[RunStatus.TIMEOUT.ordinal()] > 0
+					|| counts[RunStatus.NEW.ordinal()] > 0
+					|| counts[RunStatus.PROGRESS.ordinal()] > 0)
+				continue;
+			List<String> passedIn = run.getUserAgents(RunStatus.PASSED);
+			passedSuites.add(new SuiteOutcome(submitted.get(i), run.getName(),
+					run.getUrl(), passedIn.toArray(new String[passedIn.size()]),
+					build.getNumber()));
+		}
+		return passedSuites;
+	}
+
+	/**
+	 * @return when the runs of the submitted jobs started and finished, or
+	 *         null if nothing was submitted
+	 */
+	public RunTimings getTimings() {
+		return poll == null ? null : poll.getTimings();
+	}
+
+	/**
+	 * @return the last state of the submitted jobs followed by the reused
+	 *         suites, or null if there is neither
+	 */
+	public JobSnapshot getSnapshot() {
+		List<JobSnapshot> parts = new ArrayList<JobSnapshot>();
+		JobSnapshot fresh = poll == null ? null : poll.getSnapshot();
+		if (fresh != null)
+			parts.add(fresh);
+
+		List<SuiteOutcome> reusedSuites = getReusedSuites();
+		if (!reusedSuites.isEmpty()) {
+			JobSnapshot.Builder builder = new JobSnapshot.Builder();
+			for (SuiteOutcome outcome : reusedSuites)
+				builder.addRun(outcome.getName(), outcome.getUrl(),
+						outcome.getPassedIn(), RunStatus.PASSED);
+			parts.add(builder.build());
+		}
+
+		if (parts.isEmpty())
+			return null;
+		return JobSnapshot.merge(parts);
+	}
+
+}
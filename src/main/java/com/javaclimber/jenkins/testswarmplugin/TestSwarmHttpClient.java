@@ -0,0 +1,445 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * HTTP layer shared by every call this plugin makes to a TestSwarm server.
+ *
+ * Connections are always read to the end and closed so the JDK keep-alive
+ * cache can hand them back out for the next request to the same server (its
+ * size per server is governed by the standard <tt>http.maxConnections</tt>
+ * system property). Every request has a connect and a read timeout, asks for
+ * a gzip/deflate encoded body, and GET requests are made conditional on the
+ * ETag/Last-Modified of the previous response for the same URL, so polling an
+ * unchanged job costs a 304 instead of the full JSON document.
+ *
+ * Since every build on the controller goes through this client, it also
+ * protects the TestSwarm servers from bursts of builds: concurrent GETs of
+ * the same URL are coalesced into one request whose response they all get,
+ * and the requests to each server are limited in number at a time and spaced
+ * out to a maximum rate. The limits can be tuned with the
+ * <tt>com.javaclimber.jenkins.testswarmplugin.TestSwarmHttpClient.maxConcurrentRequests</tt>
+ * and <tt>com.javaclimber.jenkins.testswarmplugin.TestSwarmHttpClient.maxRequestsPerSecond</tt>
+ * system properties.
+ */
+public class TestSwarmHttpClient {
+
+	private static final String UTF_8 = "UTF-8";
+
+	private static final int MAX_CACHED_URLS = 256;
+
+	private static final int MAX_CONCURRENT_REQUESTS = Integer.getInteger(
+			TestSwarmHttpClient.class.getName() + ".maxConcurrentRequests", 4);
+
+	private static final int MAX_REQUESTS_PER_SECOND = Integer.getInteger(
+			TestSwarmHttpClient.class.getName() + ".maxRequestsPerSecond", 20);
+
+	private static final TestSwarmHttpClient INSTANCE = new TestSwarmHttpClient();
+
+	private volatile int connectTimeoutInMillis = 30 * 1000;
+
+	private volatile int readTimeoutInMillis = 60 * 1000;
+
+	// last validators and body per url, used for conditional GETs
+	private final Map<String, Response> cache = new LinkedHashMap<String, Response>(
+			16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Response> eldest) {
+			return size() > MAX_CACHED_URLS;
+		}
+	};
+
+	// GETs being made, by url
+	private final Map<String, FutureTask<Response>> inFlight = new HashMap<String, FutureTask<Response>>();
+
+	// by scheme, host and port
+	private final Map<String, ServerLimiter> limiters = new HashMap<String, ServerLimiter>();
+
+	public static TestSwarmHttpClient get() {
+		return INSTANCE;
+	}
+
+	public void setTimeouts(int connectTimeoutInSecs, int readTimeoutInSecs) {
+		this.connectTimeoutInMillis = connectTimeoutInSecs * 1000;
+		this.readTimeoutInMillis = readTimeoutInSecs * 1000;
+	}
+
+	/**
+	 * Conditional GET. When the server answers 304 the body of the previous
+	 * response is returned again and {@link Response#isNotModified()} is set.
+	 * Callers asking for a URL while it is being fetched wait for that fetch
+	 * and share its response.
+	 */
+	public Response get(final String url) throws IOException {
+		FutureTask<Response> fetch;
+		boolean coalesced;
+		synchronized (inFlight) {
+			fetch = inFlight.get(url);
+			coalesced = fetch != null;
+			if (!coalesced) {
+				fetch = new FutureTask<Response>(new Callable<Response>() {
+					public Response call() throws IOException {
+						return fetch(url);
+					}
+				});
+				inFlight.put(url, fetch);
+			}
+		}
+
+		if (coalesced) {
+			TestSwarmMetrics.get().coalescedRequests.incrementAndGet();
+		} else {
+			try {
+				fetch.run();
+			} finally {
+				synchronized (inFlight) {
+					inFlight.remove(url);
+				}
+			}
+		}
+
+		try {
+			return fetch.get();
+		} catch (InterruptedException ex) {
+			InterruptedIOException interrupted = new InterruptedIOException(
+					"interrupted while waiting for " + url);
+			interrupted.initCause(ex);
+			throw interrupted;
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+			if (ex.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ex.getCause();
+			throw new IOException(String.valueOf(ex.getCause()));
+		}
+	}
+
+	private Response fetch(String url) throws IOException {
+		Response previous;
+		synchronized (cache) {
+			previous = cache.get(url);
+		}
+
+		Response response;
+		ServerLimiter limiter = limiterFor(url);
+		limiter.acquire();
+		try {
+			HttpURLConnection conn = open(url);
+			if (previous != null) {
+				if (previous.getEtag() != null)
+					conn.setRequestProperty("If-None-Match", previous.getEtag());
+				if (previous.getLastModified() != null)
+					conn.setRequestProperty("If-Modified-Since",
+							previous.getLastModified());
+			}
+
+			int code = conn.getResponseCode();
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+				drain(conn);
+				return previous.notModified();
+			}
+
+			response = read(url, conn, code);
+		} finally {
+			limiter.release();
+		}
+		if (response.getEtag() != null || response.getLastModified() != null) {
+			synchronized (cache) {
+				cache.put(url, response);
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * POSTs a form-encoded body, streamed to the server with chunked transfer
+	 * encoding, and hands the decoded response stream to the handler.
+	 */
+	public <T> T post(String url, RequestBody body, ResponseHandler<T> handler)
+			throws IOException {
+		ServerLimiter limiter = limiterFor(url);
+		limiter.acquire();
+		try {
+			return post(url, open(url), body, handler);
+		} finally {
+			limiter.release();
+		}
+	}
+
+	private <T> T post(String url, HttpURLConnection conn, RequestBody body,
+			ResponseHandler<T> handler) throws IOException {
+		conn.setDoOutput(true);
+		conn.setRequestMethod("POST");
+		conn.setRequestProperty("Content-Type",
+				"application/x-www-form-urlencoded");
+		conn.setChunkedStreamingMode(8192);
+
+		OutputStream out = conn.getOutputStream();
+		try {
+			body.writeTo(out);
+		} finally {
+			out.close();
+		}
+
+		int code = conn.getResponseCode();
+		if (code < 200 || code >= 300) {
+			drain(conn);
+			throw new IOException("TestSwarm server returned HTTP " + code
+					+ " for " + url);
+		}
+
+		InputStream in = decode(conn, conn.getInputStream());
+		try {
+			// the handler may close what it was given, as the JSON parsers do
+			T result = handler.handle(new FilterInputStream(in) {
+				@Override
+				public void close() {
+					// closed below, once drained
+				}
+			});
+			// let the connection be reused
+			byte[] buffer = new byte[1024];
+			while (in.read(buffer) != -1) {
+				// discard
+			}
+			return result;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Drops the cached validators of a URL which will not be polled again.
+	 */
+	public void forget(String url) {
+		synchronized (cache) {
+			cache.remove(url);
+		}
+	}
+
+	private ServerLimiter limiterFor(String url) throws IOException {
+		URL parsed = new URL(url);
+		String server = parsed.getProtocol() + "://" + parsed.getHost() + ":"
+				+ (parsed.getPort() < 0 ? parsed.getDefaultPort() : parsed
+						.getPort());
+		synchronized (limiters) {
+			ServerLimiter limiter = limiters.get(server);
+			if (limiter == null) {
+				limiter = new ServerLimiter(MAX_CONCURRENT_REQUESTS,
+						MAX_REQUESTS_PER_SECOND);
+				limiters.put(server, limiter);
+			}
+			return limiter;
+		}
+	}
+
+	private HttpURLConnection open(String url) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(url)
+				.openConnection();
+		conn.setConnectTimeout(connectTimeoutInMillis);
+		conn.setReadTimeout(readTimeoutInMillis);
+		conn.setUseCaches(false);
+		conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+		return conn;
+	}
+
+	private Response read(String url, HttpURLConnection conn, int code)
+			throws IOException {
+		if (code < 200 || code >= 300) {
+			drain(conn);
+			throw new IOException("TestSwarm server returned HTTP " + code
+					+ " for " + url);
+		}
+
+		InputStream in = decode(conn, conn.getInputStream());
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream(
+					Math.max(conn.getContentLength(), 8192));
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+			}
+			return new Response(code, body.toByteArray(),
+					conn.getHeaderField("ETag"),
+					conn.getHeaderField("Last-Modified"), false);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static InputStream decode(HttpURLConnection conn, InputStream in)
+			throws IOException {
+		String encoding = conn.getContentEncoding();
+		if ("gzip".equalsIgnoreCase(encoding))
+			return new GZIPInputStream(in);
+		if ("deflate".equalsIgnoreCase(encoding))
+			return new InflaterInputStream(in, new Inflater());
+		return in;
+	}
+
+	/**
+	 * Reads whatever is left so the connection can be kept alive.
+	 */
+	private static void drain(HttpURLConnection conn) {
+		InputStream in = conn.getErrorStream();
+		try {
+			if (in == null)
+				in = conn.getInputStream();
+			byte[] buffer = new byte[1024];
+			while (in.read(buffer) != -1) {
+				// discard
+			}
+		} catch (IOException ex) {
+			// nothing to keep alive
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException ex) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Limits the requests to one server in number at a time and spaces them
+	 * out evenly to a maximum rate. A request waits for its turn under the
+	 * rate before it takes one of the slots, so the slots only ever go to
+	 * requests that are being made.
+	 */
+	private static final class ServerLimiter {
+
+		private final Semaphore concurrency;
+
+		private final long intervalInNanos;
+
+		private long nextPermit;
+
+		ServerLimiter(int maxConcurrent, int maxPerSecond) {
+			this.concurrency = new Semaphore(Math.max(maxConcurrent, 1), true);
+			this.intervalInNanos = maxPerSecond > 0 ? 1000000000L
+					/ maxPerSecond : 0;
+			this.nextPermit = System.nanoTime();
+		}
+
+		void acquire() throws InterruptedIOException {
+			long start = System.nanoTime();
+			try {
+				long wait;
+				synchronized (this) {
+					long now = System.nanoTime();
+					wait = Math.max(nextPermit - now, 0);
+					nextPermit = now + wait + intervalInNanos;
+				}
+				if (wait > 0)
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				concurrency.acquire();
+			} catch (InterruptedException ex) {
+				InterruptedIOException interrupted = new InterruptedIOException(
+						"interrupted while waiting to contact TestSwarm");
+				interrupted.initCause(ex);
+				throw interrupted;
+			} finally {
+				TestSwarmMetrics.get().throttleNanos.addAndGet(
+						System.nanoTime() - start);
+			}
+		}
+
+		void release() {
+			concurrency.release();
+		}
+	}
+
+	/**
+	 * Writes the body of a request.
+	 */
+	public interface RequestBody {
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Reads a response straight from the connection.
+	 */
+	public interface ResponseHandler<T> {
+		T handle(InputStream in) throws IOException;
+	}
+
+	public static final class Response {
+
+		private final int status;
+
+		private final byte[] body;
+
+		private final String etag;
+
+		private final String lastModified;
+
+		private final boolean notModified;
+
+		Response(int status, byte[] body, String etag, String lastModified,
+				boolean notModified) {
+			this.status = status;
+			this.body = body;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.notModified = notModified;
+		}
+
+		Response notModified() {
+			return new Response(HttpURLConnection.HTTP_NOT_MODIFIED, body,
+					etag, lastModified, true);
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public String getBodyAsString() {
+			try {
+				return new String(body, UTF_8);
+			} catch (UnsupportedEncodingException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public String getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * True when the server answered 304 and {@link #getBody()} is the
+		 * body of the previous response.
+		 */
+		public boolean isNotModified() {
+			return notModified;
+		}
+	}
+
+}
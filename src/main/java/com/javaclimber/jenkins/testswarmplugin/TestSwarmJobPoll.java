@@ -0,0 +1,297 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import hudson.model.BuildListener;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * State of the TestSwarm jobs of one build being polled by the shared
+ * {@link TestSwarmPoller}. Each run of this task fetches every job once,
+ * evaluates them together and either reschedules itself or completes, waking
+ * up the build waiting in {@link #awaitResult()}.
+ *
+ * A build submits more than one job when its test suites are sharded; the
+ * snapshots of the jobs are then merged and judged as one.
+ */
+public class TestSwarmJobPoll implements Runnable {
+
+	private final List<String> jobUrls;
+
+	private final JobSnapshot[] parts;
+
+	// the bodies the parts were parsed from
+	private final byte[][] bodies;
+
+	private final int minimumPassing;
+
+	private final boolean failFast;
+
+	private final boolean debugLogging;
+
+	private final PollingPolicy pollingPolicy;
+
+	private final long deadline;
+
+	private final TestSwarmDecisionMaker resultsAnalyzer;
+
+	private final BuildListener listener;
+
+	private final ProgressReporter progress;
+
+	private final RunTimings timings = new RunTimings();
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private TestSwarmPoller poller;
+
+	private RetryPolicy retryPolicy;
+
+	private EarlyExitPolicy earlyExitPolicy;
+
+	private BuildMetrics metrics = new BuildMetrics();
+
+	private ScheduledFuture<?> nextPoll;
+
+	// when the previous poll started, 0 before the first
+	private long lastPollStart;
+
+	private volatile boolean cancelled;
+
+	// the build gave up on the remaining runs
+	private volatile boolean abandoned;
+
+	private volatile int jobStatus = TestSwarmBuilder.UNKNOWN;
+
+	private volatile Exception failure;
+
+	private volatile JobSnapshot snapshot;
+
+	public TestSwarmJobPoll(List<String> jobUrls, int minimumPassing,
+			boolean failFast, PollingPolicy pollingPolicy, long deadline,
+			TestSwarmDecisionMaker resultsAnalyzer, BuildListener listener,
+			boolean debugLogging) {
+		this.jobUrls = jobUrls;
+		this.parts = new JobSnapshot[jobUrls.size()];
+		this.bodies = new byte[jobUrls.size()][];
+		this.minimumPassing = minimumPassing;
+		this.failFast = failFast;
+		this.pollingPolicy = pollingPolicy;
+		this.deadline = deadline;
+		this.resultsAnalyzer = resultsAnalyzer;
+		this.listener = listener;
+		this.debugLogging = debugLogging;
+		this.progress = new ProgressReporter(listener.getLogger());
+	}
+
+	void attach(TestSwarmPoller poller) {
+		this.poller = poller;
+	}
+
+	/**
+	 * Records the time spent polling in the given metrics. Must be set
+	 * before the poll is started.
+	 */
+	public void setMetrics(BuildMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Retries failing runs as the polls come across them. Must be set before
+	 * the poll is started.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Stops waiting once the policy decides the job. Must be set before the
+	 * poll is started.
+	 */
+	public void setEarlyExitPolicy(EarlyExitPolicy earlyExitPolicy) {
+		this.earlyExitPolicy = earlyExitPolicy;
+	}
+
+	public List<String> getJobUrls() {
+		return jobUrls;
+	}
+
+	public void run() {
+		if (cancelled)
+			return;
+		try {
+			long previousPoll = lastPollStart;
+			lastPollStart = System.currentTimeMillis();
+			metrics.recordPoll();
+			boolean changed = false;
+			for (int i = 0; i < parts.length; i++) {
+				long requestStart = System.currentTimeMillis();
+				TestSwarmHttpClient.Response response = TestSwarmHttpClient
+						.get().get(jobUrls.get(i));
+				metrics.recordRequest(System.currentTimeMillis()
+						- requestStart, response.isNotModified() ? 0
+						: response.getBody().length, response.isNotModified());
+
+				// a 304 may repeat a body another build saw first
+				if (response.getBody() == bodies[i]) {
+					if (debugLogging)
+						listener.getLogger().println(
+								"No change since last poll of "
+										+ jobUrls.get(i));
+				} else {
+					if (debugLogging)
+						listener.getLogger().println(
+								response.getBodyAsString());
+
+					JobSnapshot previous = parts[i];
+					long parseStart = System.nanoTime();
+					parts[i] = JobSnapshot.parse(response.getBody());
+					bodies[i] = response.getBody();
+					metrics.recordParse(System.nanoTime() - parseStart);
+					if (retryPolicy != null)
+						parts[i] = retryPolicy.apply(i, parts[i],
+								listener.getLogger());
+					changed |= !parts[i].hasSameStatuses(previous);
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			if (changed || snapshot == null) {
+				snapshot = JobSnapshot.merge(Arrays.asList(parts));
+				timings.update(snapshot, now, previousPoll);
+				long evaluateStart = System.nanoTime();
+				jobStatus = resultsAnalyzer.jobStatus(snapshot,
+						minimumPassing, failFast,
+						debugLogging ? listener.getLogger() : null);
+				metrics.recordEvaluation(System.nanoTime() - evaluateStart);
+			}
+
+			progress.report(snapshot, now);
+			if (jobStatus == TestSwarmBuilder.ALL_PASSING
+					|| jobStatus == TestSwarmBuilder.FAILURE_DONE) {
+				progress.summary(snapshot);
+				finish();
+			} else if (earlyExitPolicy != null
+					&& earlyExitPolicy.isDecided(snapshot, jobStatus,
+							minimumPassing)) {
+				progress.summary(snapshot);
+				listener.getLogger().println(
+						"Enough browsers passed, not waiting for the remaining runs");
+				abandoned = earlyExitPolicy.isCancellingJobs();
+				finish();
+			} else if (now >= deadline) {
+				progress.summary(snapshot);
+				listener.getLogger().println("TestSwarm job timed out");
+				abandoned = true;
+				finish();
+			} else {
+				// the last poll happens right at the deadline
+				long delay = Math.min(pollingPolicy.nextDelay(changed, now),
+						deadline - now);
+				if (debugLogging)
+					listener.getLogger().println(
+							"Polling again in " + (delay + 500) / 1000
+									+ " seconds...");
+				synchronized (this) {
+					if (!cancelled)
+						nextPoll = poller.schedule(this, delay);
+				}
+			}
+		} catch (Exception ex) {
+			failure = ex;
+			finish();
+		}
+	}
+
+	/**
+	 * Blocks until the poll completes and returns the last job status. If the
+	 * waiting thread is interrupted, the poll is cancelled.
+	 */
+	public int awaitResult() throws Exception {
+		try {
+			done.await();
+		} catch (InterruptedException ex) {
+			cancel();
+			throw ex;
+		}
+		if (failure != null)
+			throw failure;
+		return jobStatus;
+	}
+
+	/**
+	 * @return the last state of the job fetched by this poll, or null if it
+	 *         was never fetched
+	 */
+	public JobSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * @return true if every run of the job with the given index was done at
+	 *         the last poll
+	 */
+	public boolean isJobFinished(int job) {
+		JobSnapshot part = parts[job];
+		if (part == null)
+			return false;
+		int[] counts = new int[RunStatus.count()];
+		for (JobSnapshot.Run run : part.getRuns())
+			run.countStatuses(counts);
+		return counts[RunStatus.NEW.ordinal()] == 0
+				&& counts[RunStatus.PROGRESS.ordinal()] == 0;
+	}
+
+	/**
+	 * @return true if every run of the job with the given index had passed
+	 *         in every user agent at the last poll
+	 */
+	public boolean isJobPassed(int job) {
+		JobSnapshot part = parts[job];
+		if (part == null)
+			return false;
+		int[] counts = new int[RunStatus.count()];
+		for (JobSnapshot.Run run : part.getRuns())
+			run.countStatuses(counts);
+		int total = 0;
+		for (int count : counts)
+			total += count;
+		return total > 0 && counts[RunStatus.PASSED.ordinal()] == total;
+	}
+
+	/**
+	 * @return true if the poll was cancelled, timed out or ended early with
+	 *         the remaining runs to be cancelled, so the runs the jobs have
+	 *         left are of no use
+	 */
+	public boolean isAbandoned() {
+		return abandoned;
+	}
+
+	/**
+	 * @return when the runs of the job started and finished, indexed like
+	 *         the runs of {@link #getSnapshot()}
+	 */
+	public RunTimings getTimings() {
+		return timings;
+	}
+
+	public synchronized void cancel() {
+		cancelled = true;
+		abandoned = true;
+		if (nextPoll != null)
+			nextPoll.cancel(false);
+		done.countDown();
+	}
+
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	private void finish() {
+		done.countDown();
+	}
+
+}
@@ -0,0 +1,105 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controller-wide totals of the work done for TestSwarm builds since
+ * startup, fed by every {@link BuildMetrics} and written in the Prometheus
+ * text format by {@link TestSwarmMetricsEndpoint}.
+ */
+public final class TestSwarmMetrics {
+
+	private static final TestSwarmMetrics INSTANCE = new TestSwarmMetrics();
+
+	final AtomicLong builds = new AtomicLong();
+
+	final AtomicLong submits = new AtomicLong();
+
+	final AtomicLong submitMillis = new AtomicLong();
+
+	final AtomicLong polls = new AtomicLong();
+
+	final AtomicLong requests = new AtomicLong();
+
+	final AtomicLong notModifiedRequests = new AtomicLong();
+
+	final AtomicLong coalescedRequests = new AtomicLong();
+
+	final AtomicLong throttleNanos = new AtomicLong();
+
+	final AtomicLong requestMillis = new AtomicLong();
+
+	final AtomicLong responseBytes = new AtomicLong();
+
+	final AtomicLong parseNanos = new AtomicLong();
+
+	final AtomicLong evaluateNanos = new AtomicLong();
+
+	final AtomicLong reportMillis = new AtomicLong();
+
+	private TestSwarmMetrics() {
+	}
+
+	public static TestSwarmMetrics get() {
+		return INSTANCE;
+	}
+
+	public void writeText(PrintWriter out) {
+		counter(out, "testswarm_builds_total",
+				"Builds which waited for TestSwarm results.", builds.get());
+		counter(out, "testswarm_submits_total",
+				"Builds which submitted jobs to TestSwarm.", submits.get());
+		counter(out, "testswarm_submit_seconds_total",
+				"Time spent submitting jobs.", seconds(submitMillis.get()));
+		counter(out, "testswarm_polls_total",
+				"Polls of the TestSwarm jobs of a build.", polls.get());
+		counter(out, "testswarm_requests_total",
+				"Requests for TestSwarm jobs, one per job and poll.",
+				requests.get());
+		counter(out, "testswarm_requests_not_modified_total",
+				"Requests answered with 304 Not Modified.",
+				notModifiedRequests.get());
+		counter(out, "testswarm_requests_coalesced_total",
+				"Requests answered by another request for the same URL.",
+				coalescedRequests.get());
+		counter(out, "testswarm_throttle_seconds_total",
+				"Time requests waited for the per-server limits.",
+				throttleNanos.get() / 1e9);
+		counter(out, "testswarm_request_seconds_total",
+				"Time spent waiting for TestSwarm job responses.",
+				seconds(requestMillis.get()));
+		counter(out, "testswarm_response_bytes_total",
+				"Decoded bytes of TestSwarm job responses.",
+				responseBytes.get());
+		counter(out, "testswarm_parse_seconds_total",
+				"Time spent parsing TestSwarm job responses.",
+				parseNanos.get() / 1e9);
+		counter(out, "testswarm_evaluate_seconds_total",
+				"Time spent deciding the status of TestSwarm jobs.",
+				evaluateNanos.get() / 1e9);
+		counter(out, "testswarm_report_seconds_total",
+				"Time spent writing TAP and JUnit reports.",
+				seconds(reportMillis.get()));
+		out.flush();
+	}
+
+	private static void counter(PrintWriter out, String name, String help,
+			Number value) {
+		out.print("# HELP ");
+		out.print(name);
+		out.print(' ');
+		out.println(help);
+		out.print("# TYPE ");
+		out.print(name);
+		out.println(" counter");
+		out.print(name);
+		out.print(' ');
+		out.println(value);
+	}
+
+	private static Double seconds(long millis) {
+		return millis / 1000.0;
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves {@link TestSwarmMetrics} at <tt>/testswarm-metrics/</tt> in the
+ * Prometheus text format, for monitoring systems to scrape.
+ */
+@Extension
+public class TestSwarmMetricsEndpoint implements RootAction {
+
+	public String getIconFileName() {
+		// not shown in the side panel
+		return null;
+	}
+
+	public String getDisplayName() {
+		return "TestSwarm Metrics";
+	}
+
+	public String getUrlName() {
+		return "testswarm-metrics";
+	}
+
+	public void doIndex(StaplerRequest req, StaplerResponse rsp)
+			throws IOException {
+		Hudson.getInstance().checkPermission(Hudson.READ);
+		rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+		TestSwarmMetrics.get().writeText(rsp.getWriter());
+	}
+
+}
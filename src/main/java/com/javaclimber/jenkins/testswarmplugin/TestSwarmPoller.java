@@ -0,0 +1,112 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Controller-wide scheduler owning every in-flight TestSwarm job poll. All
+ * builds share one small pool of daemon threads, so a build waiting for its
+ * TestSwarm job does not burn a thread of its own on sleeping and polling.
+ * The scheduler threads only keep time: a poll that is due runs on a
+ * separate bounded pool, as it blocks on requests to TestSwarm, so slow
+ * servers hold up other polls only once that pool is busy and never delay
+ * their timing.
+ *
+ * Job submissions that can run side by side, such as the shards of one
+ * build, go through a third small pool.
+ *
+ * The pool sizes can be tuned with the
+ * <tt>com.javaclimber.jenkins.testswarmplugin.TestSwarmPoller.poolSize</tt>,
+ * <tt>com.javaclimber.jenkins.testswarmplugin.TestSwarmPoller.ioPoolSize</tt>
+ * and <tt>com.javaclimber.jenkins.testswarmplugin.TestSwarmPoller.submitPoolSize</tt>
+ * system properties.
+ */
+public final class TestSwarmPoller {
+
+	private static final int POOL_SIZE = Integer.getInteger(
+			TestSwarmPoller.class.getName() + ".poolSize", 2);
+
+	private static final int IO_POOL_SIZE = Integer.getInteger(
+			TestSwarmPoller.class.getName() + ".ioPoolSize", 8);
+
+	private static final int SUBMIT_POOL_SIZE = Integer.getInteger(
+			TestSwarmPoller.class.getName() + ".submitPoolSize", 4);
+
+	private static final TestSwarmPoller INSTANCE = new TestSwarmPoller(
+			POOL_SIZE, IO_POOL_SIZE, SUBMIT_POOL_SIZE);
+
+	private final ScheduledExecutorService scheduler;
+
+	private final ExecutorService io;
+
+	private final ExecutorService submitter;
+
+	private TestSwarmPoller(int poolSize, int ioPoolSize, int submitPoolSize) {
+		this.scheduler = Executors.newScheduledThreadPool(poolSize,
+				new PollerThreadFactory("TestSwarm poller"));
+		this.io = Executors.newFixedThreadPool(ioPoolSize,
+				new PollerThreadFactory("TestSwarm poll I/O"));
+		this.submitter = Executors.newFixedThreadPool(submitPoolSize,
+				new PollerThreadFactory("TestSwarm submitter"));
+	}
+
+	public static TestSwarmPoller get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Hands the poll over to the shared scheduler. The first poll happens
+	 * after the given delay, later ones are rescheduled by the poll itself.
+	 */
+	public TestSwarmJobPoll start(TestSwarmJobPoll poll, long delayInMillis) {
+		poll.attach(this);
+		schedule(poll, delayInMillis);
+		return poll;
+	}
+
+	/**
+	 * Runs the tasks concurrently and returns their futures in order, once
+	 * every task has finished.
+	 */
+	public <T> List<Future<T>> invokeAll(
+			Collection<? extends Callable<T>> tasks) throws InterruptedException {
+		return submitter.invokeAll(tasks);
+	}
+
+	/**
+	 * Runs the task on the I/O pool once the delay is over.
+	 */
+	ScheduledFuture<?> schedule(final Runnable task, long delayInMillis) {
+		return scheduler.schedule(new Runnable() {
+			public void run() {
+				io.execute(task);
+			}
+		}, delayInMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private static final class PollerThreadFactory implements ThreadFactory {
+		private final String name;
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		PollerThreadFactory(String name) {
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + " #" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+}
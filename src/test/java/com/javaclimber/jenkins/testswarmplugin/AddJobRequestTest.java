@@ -0,0 +1,95 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmBuilder.TestSuiteData;
+
+/**
+ * Checks the streamed <tt>addjob</tt> body against
+ * {@link URLEncoder#encode(String, String)}.
+ */
+public class AddJobRequestTest {
+
+	private static final String[] VALUES = { "", "plain", "with space",
+			"a+b&c=d%e", "~!@#$^*()_-.'\"", "/path?query=1#hash",
+			"\u00e9\u00e8 caf\u00e9", "\u4e2d\u6587", "emoji \ud83d\ude00",
+			"tab\tnew\nline" };
+
+	@Test
+	public void encodesLikeUrlEncoder() throws Exception {
+		for (String charset : new String[] { "UTF-8", "ISO-8859-1" }) {
+			for (String value : VALUES) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				AddJobRequest.encode(out, value, Charset.forName(charset));
+				assertEquals(charset + " " + value,
+						URLEncoder.encode(value, charset),
+						out.toString("US-ASCII"));
+			}
+		}
+	}
+
+	@Test
+	public void writesTheFormTheOldQueryStringHad() throws Exception {
+		List<TestSuiteData> suites = new ArrayList<TestSuiteData>();
+		suites.add(new TestSuiteData("caf\u00e9 suite",
+				"http://localhost/a b?x=1", false, false, null));
+		suites.add(new TestSuiteData("second", "http://localhost/b", false,
+				false, null));
+		AddJobRequest request = new AddJobRequest("project", "tok&en",
+				"job name", "2", "popular", suites, "UTF-8");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		request.writeTo(out);
+		String expected = "authID=project&authToken=tok%26en"
+				+ "&jobName=job+name&runMax=2&browserSets%5B%5D=popular";
+		for (TestSuiteData suite : suites)
+			expected += "&runNames%5B%5D="
+					+ URLEncoder.encode(suite.getTestName(), "UTF-8")
+					+ "&runUrls%5B%5D="
+					+ URLEncoder.encode(suite.getTestUrl(), "UTF-8");
+		assertEquals(expected, out.toString("US-ASCII"));
+	}
+
+	@Test
+	public void masksTheAuthTokenInTheLog() throws Exception {
+		AddJobRequest request = new AddJobRequest("project", "secret",
+				"job", "2", "popular", Arrays.asList(new TestSuiteData("a",
+						"http://localhost/a", true, false, null)), "UTF-8");
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		request.logTo(log);
+		assertFalse(log.toString("US-ASCII").contains("secret"));
+		assertTrue(log.toString("US-ASCII").contains("authToken=********&"));
+	}
+
+	@Test
+	public void reuseKeyIgnoresTheJobNameButNotTheSuites() {
+		List<TestSuiteData> suites = Arrays.asList(new TestSuiteData("a",
+				"http://localhost/a", true, false, null));
+		List<TestSuiteData> renamed = Arrays.asList(new TestSuiteData("b",
+				"http://localhost/a", true, false, null));
+		List<TestSuiteData> moved = Arrays.asList(new TestSuiteData("a",
+				"http://localhost/b", true, false, null));
+		String key = new AddJobRequest("p", "t", "one", "2", "popular",
+				suites, "UTF-8").getReuseKey();
+		assertEquals(key, new AddJobRequest("p", "t", "two", "2", "popular",
+				suites, "UTF-8").getReuseKey());
+		assertEquals(false, key.equals(new AddJobRequest("p", "t", "one",
+				"2", "popular", renamed, "UTF-8").getReuseKey()));
+		assertEquals(false, key.equals(new AddJobRequest("p", "t", "one",
+				"2", "popular", moved, "UTF-8").getReuseKey()));
+		assertEquals(false, key.equals(new AddJobRequest("p", "t", "one",
+				"3", "popular", suites, "UTF-8").getReuseKey()));
+	}
+
+}
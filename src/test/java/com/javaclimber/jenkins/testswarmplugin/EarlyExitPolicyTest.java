@@ -0,0 +1,105 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Checks when {@link EarlyExitPolicy} ends the wait for a job.
+ */
+public class EarlyExitPolicyTest {
+
+	private final TestSwarmDecisionMaker decisionMaker = new TestSwarmDecisionMaker();
+
+	@Test
+	public void quorumEndsTheWaitOnceEnoughBrowsersPassed() throws Exception {
+		JobSnapshot snapshot = snapshot(
+				run(1, "Chrome|20=passed", "Chrome|21=passed",
+						"Firefox|15=progress"),
+				run(2, "Chrome|20=passed", "Chrome|21=passed",
+						"Firefox|15=new"));
+		assertTrue(isDecided("quorum", snapshot, 2));
+	}
+
+	@Test
+	public void quorumKeepsWaitingForTooFewPasses() throws Exception {
+		JobSnapshot snapshot = snapshot(
+				run(1, "Chrome|20=passed", "Chrome|21=passed",
+						"Firefox|15=progress"),
+				run(2, "Chrome|20=passed", "Chrome|21=progress",
+						"Firefox|15=new"));
+		assertFalse(isDecided("quorum", snapshot, 2));
+
+		snapshot = snapshot(run(1, "Chrome|20=passed", "Chrome|21=failed",
+				"Firefox|15=progress"));
+		assertFalse(isDecided("quorum", snapshot, 1));
+	}
+
+	@Test
+	public void perFamilyKeepsWaitingForAFamilyWithoutPasses()
+			throws Exception {
+		JobSnapshot snapshot = snapshot(run(1, "Chrome|20=passed",
+				"Chrome|21=passed", "Firefox|15=progress"));
+		assertTrue(isDecided("quorum", snapshot, 1));
+		assertFalse(isDecided("per-family", snapshot, 1));
+
+		snapshot = snapshot(run(1, "Chrome|20=passed", "Chrome|21=progress",
+				"Firefox|15=passed"));
+		assertTrue(isDecided("per-family", snapshot, 1));
+		// Chrome needs two versions passed, Firefox the only one it has
+		assertFalse(isDecided("per-family", snapshot, 2));
+	}
+
+	@Test
+	public void cancelsOnlyWhenAsked() {
+		assertFalse(EarlyExitPolicy.parse("quorum").isCancellingJobs());
+		assertTrue(EarlyExitPolicy.parse("per-family, cancel")
+				.isCancellingJobs());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void needsARule() {
+		EarlyExitPolicy.parse("cancel");
+	}
+
+	private boolean isDecided(String rule, JobSnapshot snapshot,
+			int minimumPassing) {
+		return EarlyExitPolicy.parse(rule).isDecided(snapshot,
+				decisionMaker.jobStatus(snapshot, minimumPassing, false, null),
+				minimumPassing);
+	}
+
+	/**
+	 * @param statuses
+	 *            status per user agent, as <tt>userAgent=status</tt>
+	 */
+	private static String run(int id, String... statuses) {
+		StringBuilder json = new StringBuilder("{\"info\":{\"id\":" + id
+				+ ",\"name\":\"suite " + id + "\",\"url\":\"http://localhost/"
+				+ id + "\"},\"uaRuns\":{");
+		for (int i = 0; i < statuses.length; i++) {
+			String[] status = statuses[i].split("=");
+			if (i > 0)
+				json.append(',');
+			json.append('"').append(status[0])
+					.append("\":{\"runStatus\":\"").append(status[1])
+					.append("\"}");
+		}
+		return json.append("}}").toString();
+	}
+
+	private static JobSnapshot snapshot(String... runs) throws IOException {
+		StringBuilder json = new StringBuilder("{\"job\":{\"runs\":[");
+		for (int i = 0; i < runs.length; i++) {
+			if (i > 0)
+				json.append(',');
+			json.append(runs[i]);
+		}
+		return JobSnapshot.parse(json.append("]}}").toString()
+				.getBytes("UTF-8"));
+	}
+
+}
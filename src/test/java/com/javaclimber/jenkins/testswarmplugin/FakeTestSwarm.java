@@ -0,0 +1,558 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for a TestSwarm server, answering the <tt>api.php</tt>
+ * actions the plugin uses (<tt>addjob</tt>, <tt>job</tt>, <tt>wiperun</tt>,
+ * <tt>wipejob</tt> and <tt>swarmstate</tt>) the way a real one does, with the swarm simulated from a
+ * {@link SwarmBehavior}. The state of a job is computed from the time since
+ * it was added, so the server keeps no clock of its own.
+ *
+ * Job responses carry an ETag and are gzipped when asked for, like behind a
+ * typical web server, and the server counts what it was asked.
+ */
+public class FakeTestSwarm {
+
+	private static final String[] STATUS_NAMES = { "new", "progress",
+			"passed", "failed", "error", "timeout" };
+
+	// indexes into STATUS_NAMES
+	private static final byte NEW = 0, PROGRESS = 1, PASSED = 2, FAILED = 3,
+			ERROR = 4, TIMEOUT = 5;
+
+	private final SwarmBehavior behavior;
+
+	private final Map<Integer, Job> jobs = new ConcurrentHashMap<Integer, Job>();
+
+	private final AtomicInteger nextJobId = new AtomicInteger(1);
+
+	private final Random random = new Random();
+
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	final AtomicLong requests = new AtomicLong();
+
+	final AtomicLong addJobRequests = new AtomicLong();
+
+	final AtomicLong jobRequests = new AtomicLong();
+
+	final AtomicLong notModified = new AtomicLong();
+
+	final AtomicLong wipeRequests = new AtomicLong();
+
+	final AtomicLong deleteRequests = new AtomicLong();
+
+	final AtomicLong swarmStateRequests = new AtomicLong();
+
+	final AtomicLong serverErrors = new AtomicLong();
+
+	final AtomicLong slowResponses = new AtomicLong();
+
+	final AtomicLong hungResponses = new AtomicLong();
+
+	final AtomicLong bytesSent = new AtomicLong();
+
+	public FakeTestSwarm(SwarmBehavior behavior) {
+		this.behavior = behavior;
+	}
+
+	/**
+	 * Starts serving on a free port of the loopback interface.
+	 */
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Fake TestSwarm #"
+						+ count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		server.setExecutor(executor);
+		server.createContext("/api.php", new ApiHandler());
+		server.start();
+	}
+
+	public void stop() {
+		stopped.countDown();
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return the URL to configure as the TestSwarm server
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getAddJobRequests() {
+		return addJobRequests.get();
+	}
+
+	public long getJobRequests() {
+		return jobRequests.get();
+	}
+
+	public long getNotModified() {
+		return notModified.get();
+	}
+
+	public long getWipeRequests() {
+		return wipeRequests.get();
+	}
+
+	public long getDeleteRequests() {
+		return deleteRequests.get();
+	}
+
+	public long getSwarmStateRequests() {
+		return swarmStateRequests.get();
+	}
+
+	public long getServerErrors() {
+		return serverErrors.get();
+	}
+
+	public long getSlowResponses() {
+		return slowResponses.get();
+	}
+
+	public long getHungResponses() {
+		return hungResponses.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	private final class ApiHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				requests.incrementAndGet();
+				if (misbehave(exchange))
+					return;
+
+				Map<String, List<String>> params = new LinkedHashMap<String, List<String>>();
+				parseForm(exchange.getRequestURI().getRawQuery(), params);
+				if ("POST".equals(exchange.getRequestMethod()))
+					parseForm(readBody(exchange.getRequestBody()), params);
+
+				String action = first(params, "action");
+				if ("addjob".equals(action))
+					addJob(exchange, params);
+				else if ("job".equals(action))
+					job(exchange, params);
+				else if ("wiperun".equals(action))
+					wipeRun(exchange, params);
+				else if ("wipejob".equals(action))
+					wipeJob(exchange, params);
+				else if ("swarmstate".equals(action))
+					swarmState(exchange);
+				else
+					error(exchange, "invalid-input", "Unknown action " + action);
+			} catch (InterruptedException ex) {
+				// stopped while hanging
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private boolean misbehave(HttpExchange exchange) throws IOException,
+				InterruptedException {
+			double p;
+			synchronized (random) {
+				p = random.nextDouble();
+			}
+			if (behavior.getResponseDelayInMillis() > 0)
+				Thread.sleep(behavior.getResponseDelayInMillis());
+			if ((p -= behavior.getServerErrorRate()) < 0) {
+				serverErrors.incrementAndGet();
+				exchange.sendResponseHeaders(500, -1);
+				return true;
+			}
+			if ((p -= behavior.getHangRate()) < 0) {
+				hungResponses.incrementAndGet();
+				stopped.await(behavior.getHangDelayInMillis(),
+						TimeUnit.MILLISECONDS);
+				exchange.sendResponseHeaders(504, -1);
+				return true;
+			}
+			if ((p -= behavior.getSlowRate()) < 0) {
+				slowResponses.incrementAndGet();
+				Thread.sleep(behavior.getSlowDelayInMillis());
+			}
+			return false;
+		}
+	}
+
+	private void addJob(HttpExchange exchange, Map<String, List<String>> params)
+			throws IOException {
+		addJobRequests.incrementAndGet();
+		List<String> runNames = all(params, "runNames[]");
+		List<String> runUrls = all(params, "runUrls[]");
+		if (runNames.isEmpty() || runNames.size() != runUrls.size()) {
+			error(exchange, "missing-parameters",
+					"runNames and runUrls do not match");
+			return;
+		}
+
+		Job job = new Job(nextJobId.getAndIncrement(), first(params,
+				"jobName"), System.currentTimeMillis(),
+				runNames.toArray(new String[runNames.size()]),
+				runUrls.toArray(new String[runUrls.size()]));
+		jobs.put(job.id, job);
+		send(exchange, 200, null, "{\"addjob\":{\"id\":" + job.id
+				+ ",\"runTotal\":" + job.runNames.length + ",\"uaTotal\":"
+				+ behavior.getBrowsers().size() + "}}");
+	}
+
+	private void job(HttpExchange exchange, Map<String, List<String>> params)
+			throws IOException {
+		jobRequests.incrementAndGet();
+		Job job = findJob(first(params, "item"));
+		if (job == null) {
+			error(exchange, "invalid-input", "Job not found");
+			return;
+		}
+
+		byte[] statuses = job.statuses(System.currentTimeMillis());
+		String etag = "\"" + job.id + "-"
+				+ Integer.toHexString(Arrays.hashCode(statuses)) + "\"";
+		if (etag.equals(exchange.getRequestHeaders().getFirst(
+				"If-None-Match"))) {
+			notModified.incrementAndGet();
+			exchange.getResponseHeaders().set("ETag", etag);
+			exchange.sendResponseHeaders(304, -1);
+			return;
+		}
+		send(exchange, 200, etag, job.toJson(statuses));
+	}
+
+	private void wipeRun(HttpExchange exchange, Map<String, List<String>> params)
+			throws IOException {
+		wipeRequests.incrementAndGet();
+		Job job = findJob(first(params, "job_id"));
+		if (job == null) {
+			error(exchange, "invalid-input", "Job not found");
+			return;
+		}
+		try {
+			int run = Integer.parseInt(first(params, "run_id")) - 1;
+			int browser = job.browserIndex(first(params, "useragent_id"));
+			if (run < 0 || run >= job.runNames.length || browser < 0) {
+				error(exchange, "invalid-input", "Run not found");
+				return;
+			}
+			job.wipe(run, browser, System.currentTimeMillis());
+			send(exchange, 200, null, "{\"wiperun\":{\"status\":\"ok\"}}");
+		} catch (NumberFormatException ex) {
+			error(exchange, "invalid-input", "Bad run id");
+		}
+	}
+
+	private void wipeJob(HttpExchange exchange, Map<String, List<String>> params)
+			throws IOException {
+		deleteRequests.incrementAndGet();
+		if (!"delete".equals(first(params, "type"))) {
+			error(exchange, "invalid-input", "Only deleting jobs is supported");
+			return;
+		}
+		Job job = findJob(first(params, "job_id"));
+		if (job == null) {
+			error(exchange, "invalid-input", "Job not found");
+			return;
+		}
+		jobs.remove(job.id);
+		send(exchange, 200, null, "{\"wipejob\":{\"status\":\"ok\"}}");
+	}
+
+	private void swarmState(HttpExchange exchange) throws IOException {
+		swarmStateRequests.incrementAndGet();
+		List<SwarmBehavior.Browser> browsers = behavior.getBrowsers();
+		int[] activeRuns = new int[browsers.size()];
+		int[] pendingRuns = new int[browsers.size()];
+		long now = System.currentTimeMillis();
+		for (Job job : jobs.values()) {
+			byte[] statuses = job.statuses(now);
+			for (int cell = 0; cell < statuses.length; cell++) {
+				if (statuses[cell] == PROGRESS)
+					activeRuns[cell % browsers.size()]++;
+				else if (statuses[cell] == NEW)
+					pendingRuns[cell % browsers.size()]++;
+			}
+		}
+
+		StringBuilder json = new StringBuilder("{\"swarmstate\":{\"userAgents\":{");
+		for (int b = 0; b < browsers.size(); b++) {
+			if (b > 0)
+				json.append(',');
+			String userAgent = browsers.get(b).getUserAgent();
+			json.append(quote(userAgent))
+					.append(":{\"data\":{\"displaytitle\":")
+					.append(quote(userAgent))
+					.append("},\"stats\":{\"onlineClients\":")
+					.append(browsers.get(b).getClients())
+					.append(",\"activeRuns\":").append(activeRuns[b])
+					.append(",\"pendingRuns\":").append(pendingRuns[b])
+					.append(",\"pendingReRuns\":0}}");
+		}
+		send(exchange, 200, null, json.append("}}}").toString());
+	}
+
+	private Job findJob(String item) {
+		try {
+			return item == null ? null : jobs.get(Integer.valueOf(item));
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	private void error(HttpExchange exchange, String code, String info)
+			throws IOException {
+		send(exchange, 200, null, "{\"error\":{\"code\":\"" + code
+				+ "\",\"info\":\"" + info + "\"}}");
+	}
+
+	private void send(HttpExchange exchange, int status, String etag,
+			String json) throws IOException {
+		byte[] body = json.getBytes("UTF-8");
+		String acceptEncoding = exchange.getRequestHeaders().getFirst(
+				"Accept-Encoding");
+		if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+			ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+			gzip.write(body);
+			gzip.close();
+			body = gzipped.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.getResponseHeaders().set("Content-Type",
+				"application/json; charset=utf-8");
+		if (etag != null)
+			exchange.getResponseHeaders().set("ETag", etag);
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+		bytesSent.addAndGet(body.length);
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1)
+			body.write(buffer, 0, read);
+		return body.toString("US-ASCII");
+	}
+
+	private static void parseForm(String form,
+			Map<String, List<String>> params) throws IOException {
+		if (form == null || form.length() == 0)
+			return;
+		for (String pair : form.split("&")) {
+			int eq = pair.indexOf('=');
+			String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0,
+					eq), "UTF-8");
+			String value = eq < 0 ? "" : URLDecoder.decode(pair
+					.substring(eq + 1), "UTF-8");
+			List<String> values = params.get(key);
+			if (values == null) {
+				values = new ArrayList<String>();
+				params.put(key, values);
+			}
+			values.add(value);
+		}
+	}
+
+	private static String first(Map<String, List<String>> params, String key) {
+		List<String> values = params.get(key);
+		return values == null ? null : values.get(0);
+	}
+
+	private static List<String> all(Map<String, List<String>> params,
+			String key) {
+		List<String> values = params.get(key);
+		return values == null ? new ArrayList<String>() : values;
+	}
+
+	private static String quote(String value) {
+		StringBuilder quoted = new StringBuilder(value.length() + 2);
+		quoted.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c < 0x20)
+				quoted.append(String.format("\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+
+	/**
+	 * A job added to the server. Run r of browser b is cell r * browsers + b.
+	 */
+	private final class Job {
+
+		final int id;
+
+		final String name;
+
+		final long created;
+
+		final String[] runNames;
+
+		final String[] runUrls;
+
+		private final long[] restartedAt;
+
+		private final int[] attempts;
+
+		Job(int id, String name, long created, String[] runNames,
+				String[] runUrls) {
+			this.id = id;
+			this.name = name == null ? "job " + id : name;
+			this.created = created;
+			this.runNames = runNames;
+			this.runUrls = runUrls;
+			int cells = runNames.length * behavior.getBrowsers().size();
+			this.restartedAt = new long[cells];
+			this.attempts = new int[cells];
+		}
+
+		int browserIndex(String userAgent) {
+			List<SwarmBehavior.Browser> browsers = behavior.getBrowsers();
+			for (int b = 0; b < browsers.size(); b++)
+				if (browsers.get(b).getUserAgent().equals(userAgent))
+					return b;
+			return -1;
+		}
+
+		synchronized void wipe(int run, int browser, long now) {
+			int cell = run * behavior.getBrowsers().size() + browser;
+			attempts[cell]++;
+			restartedAt[cell] = now
+					+ behavior.getBrowsers().get(browser).getLatencyInMillis();
+		}
+
+		synchronized byte[] statuses(long now) {
+			List<SwarmBehavior.Browser> browsers = behavior.getBrowsers();
+			byte[] statuses = new byte[runNames.length * browsers.size()];
+			for (int r = 0; r < runNames.length; r++) {
+				for (int b = 0; b < browsers.size(); b++) {
+					SwarmBehavior.Browser browser = browsers.get(b);
+					int cell = r * browsers.size() + b;
+					if (browser.getClients() <= 0) {
+						statuses[cell] = NEW;
+						continue;
+					}
+					long start = restartedAt[cell] > 0 ? restartedAt[cell]
+							: created + browser.getLatencyInMillis()
+									+ (r / browser.getClients())
+									* browser.getRunInMillis();
+					if (now < start)
+						statuses[cell] = NEW;
+					else if (now < start + browser.getRunInMillis())
+						statuses[cell] = PROGRESS;
+					else
+						statuses[cell] = outcome(cell);
+				}
+			}
+			return statuses;
+		}
+
+		private byte outcome(int cell) {
+			double p = new Random(((long) id << 32) ^ ((long) cell << 8)
+					^ attempts[cell]).nextDouble();
+			if ((p -= behavior.getFailureRate()) < 0)
+				return FAILED;
+			if ((p -= behavior.getErrorRate()) < 0)
+				return ERROR;
+			if ((p -= behavior.getTimeoutRate()) < 0)
+				return TIMEOUT;
+			return PASSED;
+		}
+
+		String toJson(byte[] statuses) {
+			List<SwarmBehavior.Browser> browsers = behavior.getBrowsers();
+			StringBuilder json = new StringBuilder(runNames.length
+					* (100 + browsers.size() * 100));
+			json.append("{\"job\":{\"info\":{\"id\":").append(id)
+					.append(",\"name\":").append(quote(name))
+					.append("},\"runs\":[");
+			for (int r = 0; r < runNames.length; r++) {
+				if (r > 0)
+					json.append(',');
+				json.append("{\"info\":{\"id\":").append(r + 1)
+						.append(",\"name\":").append(quote(runNames[r]))
+						.append(",\"url\":").append(quote(runUrls[r]))
+						.append("},\"uaRuns\":{");
+				for (int b = 0; b < browsers.size(); b++) {
+					if (b > 0)
+						json.append(',');
+					byte status = statuses[r * browsers.size() + b];
+					json.append(quote(browsers.get(b).getUserAgent()))
+							.append(":{\"runStatus\":\"")
+							.append(STATUS_NAMES[status]).append('"');
+					if (status != NEW)
+						json.append(",\"runResultsUrl\":\"/result/")
+								.append(id).append('/').append(r + 1)
+								.append('/').append(b).append('"');
+					json.append('}');
+				}
+				json.append("}}");
+			}
+			json.append("],\"userAgents\":{");
+			for (int b = 0; b < browsers.size(); b++) {
+				if (b > 0)
+					json.append(',');
+				String userAgent = browsers.get(b).getUserAgent();
+				json.append(quote(userAgent))
+						.append(":{\"data\":{\"displaytitle\":")
+						.append(quote(userAgent)).append("}}");
+			}
+			return json.append("}}}").toString();
+		}
+	}
+
+}
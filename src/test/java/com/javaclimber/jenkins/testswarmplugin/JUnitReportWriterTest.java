@@ -0,0 +1,112 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmBuilder.TestSuiteData;
+
+/**
+ * Checks the JUnit XML {@link JUnitReportWriter} writes for a snapshot, byte
+ * for byte.
+ */
+public class JUnitReportWriterTest {
+
+	private static final String[] BROWSERS = { "Chrome|20", "Firefox|15" };
+
+	private static final String[] FIREFOX = { "Firefox|15" };
+
+	@Test
+	public void writesASuitePerRunAndACasePerBrowser() throws IOException {
+		RunTimings timings = new RunTimings();
+		timings.update(snapshot(RunStatus.PROGRESS, RunStatus.PROGRESS,
+				RunStatus.PROGRESS, RunStatus.PASSED), 1000, 0);
+		JobSnapshot snapshot = snapshot(RunStatus.PASSED, RunStatus.FAILED,
+				RunStatus.TIMEOUT, RunStatus.PASSED);
+		timings.update(snapshot, 3500, 1000);
+
+		List<SuiteOutcome> reused = Arrays.asList(new SuiteOutcome("print",
+				"event", "http://localhost/event", BROWSERS, 41));
+		List<TestSuiteData> disabled = Arrays.asList(new TestSuiteData(
+				"offline & <flaky", "http://localhost/offline", false, true,
+				null));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new JUnitReportWriter(out).write(snapshot, timings, reused, disabled);
+
+		String xml = out.toString("UTF-8");
+		// the quotes of the declaration differ between StAX implementations
+		assertTrue(xml.startsWith("<?xml "));
+		assertEquals("<testsuites>"
+				+ "<testsuite name=\"core &quot;quoted&quot; &amp; a &lt; b\""
+				+ " tests=\"2\" failures=\"0\" errors=\"0\" skipped=\"0\""
+				+ " time=\"5.000\"><properties>"
+				+ "<property name=\"url\""
+				+ " value=\"http://localhost/core?a=1&amp;b=2\"/>"
+				+ "</properties>"
+				+ "<testcase"
+				+ " classname=\"core &quot;quoted&quot; &amp; a &lt; b\""
+				+ " name=\"Chrome|20\" time=\"2.500\"></testcase>"
+				+ "<testcase"
+				+ " classname=\"core &quot;quoted&quot; &amp; a &lt; b\""
+				+ " name=\"Firefox|15\" time=\"2.500\"></testcase>"
+				+ "</testsuite>"
+				+ "<testsuite name=\"ajax\" tests=\"1\" failures=\"1\""
+				+ " errors=\"0\" skipped=\"0\" time=\"2.500\"><properties>"
+				+ "<property name=\"url\" value=\"http://localhost/ajax\"/>"
+				+ "</properties>"
+				+ "<testcase classname=\"ajax\" name=\"Firefox|15\""
+				+ " time=\"2.500\">"
+				+ "<failure message=\"failed in Firefox|15\"/></testcase>"
+				+ "</testsuite>"
+				+ "<testsuite name=\"css\" tests=\"2\" failures=\"0\""
+				+ " errors=\"2\" skipped=\"0\" time=\"5.000\"><properties>"
+				+ "<property name=\"url\" value=\"http://localhost/css\"/>"
+				+ "</properties>"
+				+ "<testcase classname=\"css\" name=\"Chrome|20\""
+				+ " time=\"2.500\">"
+				+ "<error message=\"timeout in Chrome|20\"/></testcase>"
+				+ "<testcase classname=\"css\" name=\"Firefox|15\""
+				+ " time=\"2.500\">"
+				+ "<error message=\"timeout in Firefox|15\"/></testcase>"
+				+ "</testsuite>"
+				+ "<testsuite name=\"event\" tests=\"2\" failures=\"0\""
+				+ " errors=\"0\" skipped=\"0\" time=\"0\"><properties>"
+				+ "<property name=\"url\" value=\"http://localhost/event\"/>"
+				+ "<property name=\"reusedFromBuild\" value=\"41\"/>"
+				+ "</properties>"
+				+ "<testcase classname=\"event\" name=\"Chrome|20\" time=\"0\">"
+				+ "</testcase>"
+				+ "<testcase classname=\"event\" name=\"Firefox|15\""
+				+ " time=\"0\">"
+				+ "</testcase>"
+				+ "</testsuite>"
+				+ "<testsuite name=\"offline &amp; &lt;flaky\" tests=\"1\""
+				+ " failures=\"0\" errors=\"0\" skipped=\"1\" time=\"0\">"
+				+ "<testcase classname=\"offline &amp; &lt;flaky\""
+				+ " name=\"disabled\" time=\"0\">"
+				+ "<skipped message=\"test disabled\"/></testcase>"
+				+ "</testsuite>"
+				+ "</testsuites>", xml.substring(xml.indexOf("?>") + 2));
+	}
+
+	/**
+	 * @return the runs of the report, the second only scheduled in Firefox
+	 */
+	private static JobSnapshot snapshot(RunStatus core, RunStatus ajax,
+			RunStatus css, RunStatus event) {
+		return new JobSnapshot.Builder()
+				.addRun("core \"quoted\" & a < b",
+						"http://localhost/core?a=1&b=2", BROWSERS, core)
+				.addRun("ajax", "http://localhost/ajax", FIREFOX, ajax)
+				.addRun("css", "http://localhost/css", BROWSERS, css)
+				.addRun("event", "http://localhost/event", BROWSERS, event)
+				.build();
+	}
+
+}
@@ -0,0 +1,203 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import hudson.XmlFile;
+import hudson.model.FreeStyleBuild;
+import hudson.model.Hudson;
+import hudson.model.StreamBuildListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmBuilder.TestSuiteData;
+
+/**
+ * Checks that {@link JobRegistry} keeps the jobs builds hold in its file
+ * and deletes the jobs they abandon on the server. Each test works on a
+ * registry of its own rather than the controller-wide one, and reads it back
+ * from the file as a restarted controller would.
+ */
+public class JobRegistryTest extends HudsonTestCase {
+
+	private static final String URL = "http://testswarm.example.org";
+
+	private File registryFile;
+
+	private final ByteArrayOutputStream logged = new ByteArrayOutputStream();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		registryFile = new File(hudson.getRootDir(), "testswarm-jobs-test.xml");
+	}
+
+	public void testKeepsRegisteredJobs() throws Exception {
+		FreeStyleBuild build = createFreeStyleProject().scheduleBuild2(0)
+				.get();
+		registry().register(URL, 42, null, "project", "token", build);
+
+		assertTrue(registry().isSubmitter(URL, 42, build));
+	}
+
+	public void testKeepsSubmittedJobs() throws Exception {
+		FreeStyleBuild build = createFreeStyleProject().scheduleBuild2(0)
+				.get();
+		assertEquals(7, registry().submit(URL, "key", 60000, "project",
+				"token", build, addJob(7), log()));
+
+		JobRegistry reloaded = registry();
+		assertTrue(reloaded.isSubmitter(URL, 7, build));
+		FreeStyleBuild other = createFreeStyleProject().scheduleBuild2(0)
+				.get();
+		assertEquals(7, reloaded.submit(URL, "key", 60000, "project",
+				"token", other, addJob(8), log()));
+	}
+
+	public void testSharesAPassedJobBetweenBuilds() throws Exception {
+		JobRegistry registry = registry();
+		FreeStyleBuild first = createFreeStyleProject().scheduleBuild2(0)
+				.get();
+		assertEquals(7, registry.submit(URL, "key", 60000, "project",
+				"token", first, addJob(7), log()));
+		registry.release(URL, 7, first, true, false, log());
+
+		FreeStyleBuild second = createFreeStyleProject().scheduleBuild2(0)
+				.get();
+		assertEquals(7, registry.submit(URL, "key", 60000, "project",
+				"token", second, addJob(8), log()));
+		assertFalse(registry.isSubmitter(URL, 7, second));
+		assertEquals(8, registry.submit(URL, "other", 60000, "project",
+				"token", second, addJob(8), log()));
+	}
+
+	public void testDoesNotReuseAFailedJob() throws Exception {
+		JobRegistry registry = registry();
+		FreeStyleBuild first = createFreeStyleProject().scheduleBuild2(0)
+				.get();
+		assertEquals(7, registry.submit(URL, "key", 60000, "project",
+				"token", first, addJob(7), log()));
+		registry.release(URL, 7, first, false, false, log());
+
+		FreeStyleBuild second = createFreeStyleProject().scheduleBuild2(0)
+				.get();
+		assertEquals(8, registry.submit(URL, "key", 60000, "project",
+				"token", second, addJob(8), log()));
+		assertTrue(registry.isSubmitter(URL, 8, second));
+	}
+
+	public void testDeletesTheJobsOfAFailedSubmission() throws Exception {
+		FakeTestSwarm swarm = new FakeTestSwarm(new SwarmBehavior().browser(
+				"Chrome|20", 1, 1000, 0));
+		swarm.start();
+		try {
+			final String url = swarm.getUrl();
+			final JobRegistry registry = registry();
+			final FreeStyleBuild build = createFreeStyleProject()
+					.scheduleBuild2(0).get();
+			List<Callable<Integer>> submissions = new ArrayList<Callable<Integer>>();
+			submissions.add(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					int jobId = submitJob(url);
+					registry.register(url, jobId, null, "project", "token",
+							build);
+					return jobId;
+				}
+			});
+			submissions.add(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					throw new IOException("addjob failed");
+				}
+			});
+
+			try {
+				registry.submitAll(url, submissions, build, log());
+				fail("the failed submission is rethrown");
+			} catch (IOException ex) {
+				assertEquals("addjob failed", ex.getMessage());
+			}
+			assertEquals(1, swarm.getDeleteRequests());
+			assertTrue(logged.toString().contains(
+					"Deleted TestSwarm job " + url + "/job/1"));
+			assertFalse(registry().isSubmitter(url, 1, build));
+		} finally {
+			swarm.stop();
+		}
+	}
+
+	public void testDeletesAJobEndedEarlyWithCancel() throws Exception {
+		// Firefox never gets past the first run
+		FakeTestSwarm swarm = new FakeTestSwarm(new SwarmBehavior().browser(
+				"Chrome|20", 1, 10, 0).browser("Firefox|15", 1, 60000, 0));
+		swarm.start();
+		try {
+			String url = swarm.getUrl();
+			JobRegistry registry = registry();
+			FreeStyleBuild build = createFreeStyleProject().scheduleBuild2(0)
+					.get();
+			int jobId = submitJob(url);
+			registry.register(url, jobId, null, "project", "token", build);
+
+			TestSwarmJobPoll poll = new TestSwarmJobPoll(
+					Arrays.asList(url + "/api.php?format=json&action=job&item="
+							+ jobId), 1, false, new PollingPolicy(100, 0),
+					System.currentTimeMillis() + 30000,
+					new TestSwarmDecisionMaker(), new StreamBuildListener(
+							logged), false);
+			poll.setEarlyExitPolicy(EarlyExitPolicy.parse("quorum, cancel"));
+			TestSwarmPoller.get().start(poll, 0);
+			assertEquals(TestSwarmBuilder.IN_PROGRESS_ENOUGH_PASSING_NO_ERRORS,
+					poll.awaitResult());
+			assertTrue(poll.isAbandoned());
+
+			// as the builder lets go of its jobs once it stops waiting
+			registry.release(url, jobId, build, poll.isJobPassed(0),
+					poll.isAbandoned() && !poll.isJobFinished(0), log());
+			assertEquals(1, swarm.getDeleteRequests());
+			assertTrue(logged.toString().contains(
+					"Deleted TestSwarm job " + url + "/job/" + jobId));
+		} finally {
+			swarm.stop();
+		}
+	}
+
+	/**
+	 * @return the registry as last written to its file
+	 */
+	private JobRegistry registry() {
+		JobRegistry registry = new JobRegistry(new XmlFile(Hudson.XSTREAM,
+				registryFile));
+		registry.load();
+		return registry;
+	}
+
+	private PrintStream log() {
+		return new PrintStream(logged, true);
+	}
+
+	/**
+	 * Submits a job of one suite to the server.
+	 */
+	private static int submitJob(String url) throws IOException {
+		AddJobRequest request = new AddJobRequest("project", "token", "job",
+				"1", "popular", Arrays.asList(new TestSuiteData("a",
+						"http://localhost/a", false, false, null)), "UTF-8");
+		return TestSwarmHttpClient.get().post(url + "/api.php?action=addjob",
+				request, request);
+	}
+
+	private static Callable<Integer> addJob(final int jobId) {
+		return new Callable<Integer>() {
+			public Integer call() {
+				return jobId;
+			}
+		};
+	}
+
+}
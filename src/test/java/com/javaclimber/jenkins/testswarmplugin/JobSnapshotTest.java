@@ -0,0 +1,127 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+/**
+ * Checks the streaming {@link JobSnapshot#parse} against the statuses the
+ * plugin used to read from the job response mapped with an
+ * {@link ObjectMapper}.
+ */
+public class JobSnapshotTest {
+
+	private static final String[] STATUSES = { "new", "progress", "passed",
+			"failed", "error", "timeout" };
+
+	@Test
+	public void parsesTheStatusesTheObjectMapperSees() throws Exception {
+		for (long seed = 0; seed < 20; seed++) {
+			byte[] json = jobJson(new Random(seed), 30, 6);
+			assertSameStatuses(json);
+		}
+	}
+
+	@Test
+	public void parsesAnEmptyJob() throws Exception {
+		JobSnapshot snapshot = JobSnapshot
+				.parse("{\"job\":{\"runs\":[],\"userAgents\":{}}}"
+						.getBytes("UTF-8"));
+		assertEquals(0, snapshot.getRunCount());
+		assertEquals(0, snapshot.getUserAgentCount());
+	}
+
+	@Test
+	public void mapsUnknownAndOldStatuses() throws Exception {
+		JobSnapshot snapshot = JobSnapshot.parse(("{\"job\":{\"runs\":[{"
+				+ "\"info\":{\"id\":1,\"name\":\"a\",\"url\":\"u\"},"
+				+ "\"uaRuns\":{\"ff\":{\"runStatus\":\"timedout\"},"
+				+ "\"ie\":{\"runStatus\":\"lost\"}}}]}}").getBytes("UTF-8"));
+		assertEquals(RunStatus.TIMEOUT, snapshot.getRun(0).getStatus(0));
+		assertEquals(RunStatus.UNKNOWN, snapshot.getRun(0).getStatus(1));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void assertSameStatuses(byte[] json) throws Exception {
+		JobSnapshot snapshot = JobSnapshot.parse(json);
+		Map<String, Object> resultMap = new ObjectMapper().readValue(json,
+				Map.class);
+		Map<String, Object> job = (Map<String, Object>) resultMap.get("job");
+		List<Map<String, Object>> runs = (List<Map<String, Object>>) job
+				.get("runs");
+
+		Map<String, Integer> userAgents = new HashMap<String, Integer>();
+		for (int ua = 0; ua < snapshot.getUserAgentCount(); ua++)
+			userAgents.put(snapshot.getUserAgent(ua), ua);
+
+		assertEquals(runs.size(), snapshot.getRunCount());
+		for (int r = 0; r < runs.size(); r++) {
+			Map<String, Object> info = (Map<String, Object>) runs.get(r).get(
+					"info");
+			Map<String, Object> uaRuns = (Map<String, Object>) runs.get(r)
+					.get("uaRuns");
+			JobSnapshot.Run run = snapshot.getRun(r);
+			assertEquals(info.get("name"), run.getName());
+			assertEquals(info.get("url"), run.getUrl());
+			for (Map.Entry<String, Integer> ua : userAgents.entrySet()) {
+				Map<String, Object> uaRun = (Map<String, Object>) uaRuns
+						.get(ua.getKey());
+				if (uaRun == null)
+					assertNull(run.getStatus(ua.getValue()));
+				else
+					assertEquals(uaRun.get("runStatus"),
+							run.getStatus(ua.getValue()).getApiName());
+			}
+		}
+	}
+
+	/**
+	 * A job response shaped like TestSwarm's, where some runs are not
+	 * scheduled in every user agent.
+	 */
+	private static byte[] jobJson(Random random, int runs, int userAgents)
+			throws Exception {
+		StringBuilder json = new StringBuilder(
+				"{\"job\":{\"info\":{\"id\":7,\"name\":\"job\"},\"runs\":[");
+		for (int r = 0; r < runs; r++) {
+			if (r > 0)
+				json.append(',');
+			json.append("{\"info\":{\"id\":").append(r + 1)
+					.append(",\"name\":\"suite \\u00e9 ").append(r)
+					.append("\",\"url\":\"http://localhost/t").append(r)
+					.append("?a=1&b=\\\"2\\\"\"},\"uaRuns\":{");
+			boolean first = true;
+			for (int ua = 0; ua < userAgents; ua++) {
+				if (random.nextInt(5) == 0)
+					continue;
+				if (!first)
+					json.append(',');
+				first = false;
+				json.append("\"Browser|").append(ua)
+						.append("\":{\"runStatus\":\"")
+						.append(STATUSES[random.nextInt(STATUSES.length)])
+						.append("\",\"runResultsUrl\":\"/result/")
+						.append(r).append("\",\"extra\":[1,{\"x\":[]}]}");
+			}
+			json.append("}}");
+		}
+		json.append("],\"userAgents\":{");
+		for (int ua = 0; ua < userAgents; ua++) {
+			if (ua > 0)
+				json.append(',');
+			json.append("\"Browser|").append(ua)
+					.append("\":{\"data\":{\"displaytitle\":\"B ").append(ua)
+					.append("\"}}");
+		}
+		json.append("}}}");
+		return json.toString().getBytes("UTF-8");
+	}
+
+}
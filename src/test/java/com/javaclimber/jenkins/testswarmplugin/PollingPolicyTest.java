@@ -0,0 +1,64 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the bounds of the {@link PollingPolicy} backoff.
+ */
+public class PollingPolicyTest {
+
+	private static final long MAX = 30 * 1000;
+
+	@Test
+	public void startsFastAndBacksOffToTheInterval() {
+		PollingPolicy policy = new PollingPolicy(MAX, 0);
+		long first = policy.firstDelay(0);
+		assertBetween(first, PollingPolicy.MIN_INTERVAL_IN_MILLIS * 0.8,
+				PollingPolicy.MIN_INTERVAL_IN_MILLIS * 1.2);
+
+		long expected = PollingPolicy.MIN_INTERVAL_IN_MILLIS;
+		for (int i = 0; i < 20; i++) {
+			expected = Math.min(expected * 2, MAX);
+			long delay = policy.nextDelay(false, 0);
+			assertBetween(delay, expected * 0.8, Math.min(expected * 1.2, MAX));
+		}
+	}
+
+	@Test
+	public void resetsWhenRunsChange() {
+		PollingPolicy policy = new PollingPolicy(MAX, 0);
+		for (int i = 0; i < 10; i++)
+			policy.nextDelay(false, 0);
+		assertBetween(policy.nextDelay(true, 0),
+				PollingPolicy.MIN_INTERVAL_IN_MILLIS * 0.8,
+				PollingPolicy.MIN_INTERVAL_IN_MILLIS * 1.2);
+	}
+
+	@Test
+	public void neverExceedsTheInterval() {
+		for (long max : new long[] { 1, 500, 2000, 5000, MAX }) {
+			PollingPolicy policy = new PollingPolicy(max, 0);
+			assertBetween(policy.firstDelay(0), 1, max);
+			for (int i = 0; i < 100; i++)
+				assertBetween(policy.nextDelay(i % 7 == 0, 0), 1, max);
+		}
+	}
+
+	@Test
+	public void waitsTheFullIntervalBeforeTheEarliestCompletion() {
+		PollingPolicy policy = new PollingPolicy(MAX, 60 * 1000);
+		assertBetween(policy.firstDelay(0), MAX * 0.8, MAX);
+		assertBetween(policy.nextDelay(true, 10 * 1000), MAX * 0.8, MAX);
+		assertBetween(policy.nextDelay(true, 60 * 1000),
+				PollingPolicy.MIN_INTERVAL_IN_MILLIS * 0.8,
+				PollingPolicy.MIN_INTERVAL_IN_MILLIS * 1.2);
+	}
+
+	private static void assertBetween(long value, double min, double max) {
+		assertTrue(value + " not in [" + min + ", " + max + "]", value >= min
+				&& value <= max);
+	}
+
+}
@@ -0,0 +1,174 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the project index of {@link ResultStore} survives records cut
+ * short or garbled by a crash, and is pruned.
+ */
+public class ResultStoreTest {
+
+	private File projectDir;
+
+	private File indexFile;
+
+	@Before
+	public void createProjectDir() throws IOException {
+		projectDir = File.createTempFile("testswarm", "project");
+		projectDir.delete();
+		projectDir.mkdir();
+		indexFile = new File(projectDir, ResultStore.INDEX_FILE);
+	}
+
+	@After
+	public void deleteProjectDir() {
+		delete(projectDir);
+	}
+
+	@Test
+	public void readsBackTheEntries() throws IOException {
+		for (int build = 1; build <= 3; build++)
+			add(build);
+		List<ResultStore.IndexEntry> entries = scan(false);
+		assertEquals(3, entries.size());
+		for (int build = 1; build <= 3; build++) {
+			ResultStore.IndexEntry entry = entries.get(build - 1);
+			assertEquals(build, entry.getBuildNumber());
+			assertEquals(build * 1000L, entry.getTimestamp());
+			assertEquals(TestSwarmBuilder.ALL_PASSING, entry.getJobStatus());
+			assertEquals(build, entry.getRunCount());
+			assertEquals(build - 1, entry.getFailedCount());
+		}
+	}
+
+	@Test
+	public void stopsAtARecordCutShort() throws IOException {
+		add(1);
+		add(2);
+		long length = indexFile.length();
+		add(3);
+		truncate(length + 7);
+
+		assertEquals(2, scan(true).size());
+
+		add(4);
+		List<ResultStore.IndexEntry> entries = scan(false);
+		assertEquals(3, entries.size());
+		assertEquals(4, entries.get(2).getBuildNumber());
+	}
+
+	@Test
+	public void skipsAGarbledRecord() throws IOException {
+		add(1);
+		long length = indexFile.length();
+		add(2);
+		add(3);
+		RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+		try {
+			// the build number of the second record
+			file.seek(length + 4);
+			file.writeInt(42);
+		} finally {
+			file.close();
+		}
+
+		List<ResultStore.IndexEntry> entries = scan(true);
+		assertEquals(2, entries.size());
+		assertEquals(1, entries.get(0).getBuildNumber());
+		assertEquals(3, entries.get(1).getBuildNumber());
+	}
+
+	@Test
+	public void stopsAtGarbage() throws IOException {
+		add(1);
+		FileOutputStream out = new FileOutputStream(indexFile, true);
+		try {
+			out.write(new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff,
+					(byte) 0xff, 1, 2, 3 });
+		} finally {
+			out.close();
+		}
+		add(2);
+
+		assertEquals(2, scan(false).size());
+	}
+
+	@Test
+	public void dropsDeletedBuilds() throws IOException {
+		for (int build = 1; build <= 3; build++)
+			add(build);
+		delete(new File(projectDir, "builds/2"));
+		add(4);
+
+		List<ResultStore.IndexEntry> entries = scan(false);
+		assertEquals(3, entries.size());
+		assertEquals(1, entries.get(0).getBuildNumber());
+		assertEquals(3, entries.get(1).getBuildNumber());
+		assertEquals(4, entries.get(2).getBuildNumber());
+	}
+
+	@Test
+	public void keepsTheLastBuilds() throws IOException {
+		int builds = ResultStore.RETAINED_BUILDS * 3;
+		for (int build = 1; build <= builds; build++) {
+			add(build);
+			assertTrue(scan(false).size() < ResultStore.RETAINED_BUILDS * 2);
+		}
+		List<ResultStore.IndexEntry> entries = scan(false);
+		assertTrue(entries.size() >= ResultStore.RETAINED_BUILDS);
+		assertEquals(builds, entries.get(entries.size() - 1).getBuildNumber());
+	}
+
+	private void add(int build) throws IOException {
+		File buildDir = new File(projectDir, "builds/" + build);
+		buildDir.mkdirs();
+		File resultsFile = new File(buildDir, ResultStore.RESULTS_FILE);
+		resultsFile.createNewFile();
+		ResultStore.addToIndex(projectDir, new ResultStore.IndexEntry(build,
+				build * 1000L, TestSwarmBuilder.ALL_PASSING, build, build - 1,
+				resultsFile));
+	}
+
+	private List<ResultStore.IndexEntry> scan(boolean damaged)
+			throws IOException {
+		List<ResultStore.IndexEntry> entries = new ArrayList<ResultStore.IndexEntry>();
+		boolean scanned = ResultStore.scan(indexFile, projectDir, entries);
+		if (damaged)
+			assertTrue(scanned);
+		else
+			assertFalse(scanned);
+		return entries;
+	}
+
+	private void truncate(long length) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+		try {
+			file.setLength(length);
+		} finally {
+			file.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+
+}
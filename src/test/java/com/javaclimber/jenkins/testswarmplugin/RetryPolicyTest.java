@@ -0,0 +1,143 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import hudson.XmlFile;
+import hudson.model.FreeStyleBuild;
+import hudson.model.Hudson;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmBuilder.TestSuiteData;
+
+/**
+ * Checks the runs {@link RetryPolicy} wipes on a {@link FakeTestSwarm}
+ * server, and that a build sharing the job of another build leaves the
+ * retries to that build.
+ */
+public class RetryPolicyTest extends HudsonTestCase {
+
+	private FakeTestSwarm swarm;
+
+	private final PrintStream log = new PrintStream(
+			new ByteArrayOutputStream(), true);
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		swarm = new FakeTestSwarm(new SwarmBehavior().browser("Chrome|20", 2,
+				10, 0).outcomes(0, 1, 0));
+		swarm.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		swarm.stop();
+		super.tearDown();
+	}
+
+	public void testWipesEachRunUpToTheRetryBudget() throws Exception {
+		int jobId = submitJob("a", "b");
+		RetryPolicy policy = new RetryPolicy(1, RetryPolicy
+				.parseStatuses("error, timeout"), new boolean[] { true },
+				new RetryPolicy.ApiRunWiper(swarm.getUrl(),
+						new int[] { jobId }, "project", "token"));
+
+		JobSnapshot retried = policy.apply(0, settled(jobId), log);
+		assertEquals(2, swarm.getWipeRequests());
+		assertEquals(RunStatus.NEW, retried.getRun(0).getStatus(0));
+		assertEquals(RunStatus.NEW, retried.getRun(1).getStatus(0));
+
+		// both runs error out again and have no retries left
+		JobSnapshot snapshot = settled(jobId);
+		assertSame(snapshot, policy.apply(0, snapshot, log));
+		assertEquals(2, swarm.getWipeRequests());
+	}
+
+	public void testOnlyWipesRunsEndingInARetriedStatus() throws Exception {
+		int jobId = submitJob("a");
+		RetryPolicy policy = new RetryPolicy(3, RetryPolicy
+				.parseStatuses("failed"), new boolean[] { true },
+				new RetryPolicy.ApiRunWiper(swarm.getUrl(),
+						new int[] { jobId }, "project", "token"));
+
+		JobSnapshot snapshot = settled(jobId);
+		assertSame(snapshot, policy.apply(0, snapshot, log));
+		assertEquals(0, swarm.getWipeRequests());
+	}
+
+	public void testLeavesTheRetriesToTheSubmittingBuild() throws Exception {
+		JobRegistry registry = new JobRegistry(new XmlFile(Hudson.XSTREAM,
+				new File(hudson.getRootDir(), "testswarm-jobs-test.xml")));
+		Callable<Integer> addJob = new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return submitJob("a");
+			}
+		};
+		FreeStyleBuild first = createFreeStyleProject().scheduleBuild2(0)
+				.get();
+		int jobId = registry.submit(swarm.getUrl(), "key", 60000, "project",
+				"token", first, addJob, log);
+		FreeStyleBuild second = createFreeStyleProject().scheduleBuild2(0)
+				.get();
+		assertEquals(jobId, registry.submit(swarm.getUrl(), "key", 60000,
+				"project", "token", second, addJob, log));
+
+		JobSnapshot snapshot = settled(jobId);
+		policy(registry, jobId, second).apply(0, snapshot, log);
+		assertEquals(0, swarm.getWipeRequests());
+		policy(registry, jobId, first).apply(0, snapshot, log);
+		assertEquals(1, swarm.getWipeRequests());
+	}
+
+	/**
+	 * @return a policy retrying errors if the build may retry the job
+	 */
+	private RetryPolicy policy(JobRegistry registry, int jobId,
+			FreeStyleBuild build) {
+		return new RetryPolicy(1, RetryPolicy.parseStatuses("error"),
+				new boolean[] { registry.isSubmitter(swarm.getUrl(), jobId,
+						build) }, new RetryPolicy.ApiRunWiper(swarm.getUrl(),
+						new int[] { jobId }, "project", "token"));
+	}
+
+	private int submitJob(String... suiteNames) throws IOException {
+		List<TestSuiteData> suites = new ArrayList<TestSuiteData>();
+		for (String name : suiteNames)
+			suites.add(new TestSuiteData(name, "http://localhost/" + name,
+					false, false, null));
+		AddJobRequest request = new AddJobRequest("project", "token", "job",
+				"1", "popular", suites, "UTF-8");
+		return TestSwarmHttpClient.get().post(
+				swarm.getUrl() + "/api.php?action=addjob", request, request);
+	}
+
+	/**
+	 * Polls the job until no run is queued or running.
+	 */
+	private JobSnapshot settled(int jobId) throws Exception {
+		String jobUrl = swarm.getUrl()
+				+ "/api.php?format=json&action=job&item=" + jobId;
+		long deadline = System.currentTimeMillis() + 10000;
+		while (true) {
+			JobSnapshot snapshot = JobSnapshot.parse(TestSwarmHttpClient.get()
+					.get(jobUrl).getBody());
+			int[] counts = new int[RunStatus.count()];
+			for (JobSnapshot.Run run : snapshot.getRuns())
+				run.countStatuses(counts);
+			if (counts[RunStatus.NEW.ordinal()] == 0
+					&& counts[RunStatus.PROGRESS.ordinal()] == 0)
+				return snapshot;
+			assertTrue("job settled in time",
+					System.currentTimeMillis() < deadline);
+			Thread.sleep(20);
+		}
+	}
+
+}
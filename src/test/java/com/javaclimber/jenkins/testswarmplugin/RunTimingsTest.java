@@ -0,0 +1,58 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks the run durations {@link RunTimings} derives from the polls.
+ */
+public class RunTimingsTest {
+
+	private static final String[] CHROME = { "Chrome|20" };
+
+	@Test
+	public void timesRunsSeenRunning() {
+		RunTimings timings = new RunTimings();
+		timings.update(snapshot(RunStatus.NEW), 1000, 0);
+		timings.update(snapshot(RunStatus.PROGRESS), 3000, 1000);
+		timings.update(snapshot(RunStatus.PASSED), 9000, 3000);
+		assertEquals(6000, timings.getDuration(0, "Chrome|20"));
+		assertEquals(9000, timings.getFinishedAt(0, "Chrome|20"));
+	}
+
+	@Test
+	public void boundsRunsFinishedBetweenPolls() {
+		RunTimings timings = new RunTimings();
+		timings.update(snapshot(RunStatus.NEW), 1000, 0);
+		// unchanged polls in between do not update the timings
+		timings.update(snapshot(RunStatus.FAILED), 9000, 7000);
+		assertEquals(2000, timings.getDuration(0, "Chrome|20"));
+	}
+
+	@Test
+	public void doesNotTimeRunsFinishedBeforeTheFirstPoll() {
+		RunTimings timings = new RunTimings();
+		timings.update(snapshot(RunStatus.PASSED), 1000, 0);
+		assertEquals(-1, timings.getDuration(0, "Chrome|20"));
+		timings.update(snapshot(RunStatus.PASSED), 3000, 1000);
+		assertEquals(-1, timings.getDuration(0, "Chrome|20"));
+	}
+
+	@Test
+	public void startsRequeuedRunsOver() {
+		RunTimings timings = new RunTimings();
+		timings.update(snapshot(RunStatus.PROGRESS), 1000, 0);
+		timings.update(snapshot(RunStatus.ERROR), 3000, 1000);
+		timings.update(snapshot(RunStatus.NEW), 5000, 3000);
+		assertEquals(-1, timings.getDuration(0, "Chrome|20"));
+		timings.update(snapshot(RunStatus.PASSED), 9000, 5000);
+		assertEquals(4000, timings.getDuration(0, "Chrome|20"));
+	}
+
+	private static JobSnapshot snapshot(RunStatus status) {
+		return new JobSnapshot.Builder().addRun("a", "http://localhost/a",
+				CHROME, status).build();
+	}
+
+}
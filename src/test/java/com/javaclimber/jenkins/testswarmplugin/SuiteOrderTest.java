@@ -0,0 +1,85 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks the order {@link SuiteOrder} puts suites in from the recorded
+ * history.
+ */
+public class SuiteOrderTest {
+
+	private static final String[] BROWSERS = { "Chrome|20", "Firefox|15" };
+
+	private static final byte PASSED = (byte) RunStatus.PASSED.ordinal();
+
+	private static final byte FAILED = (byte) RunStatus.FAILED.ordinal();
+
+	private static final byte TIMEOUT = (byte) RunStatus.TIMEOUT.ordinal();
+
+	@Test
+	public void putsNewSuitesFirstThenTheMostFailing() {
+		List<StoredResults> history = Arrays.asList(
+				results(1, new String[] { "a", "b", "c" }, new byte[][] {
+						{ PASSED, PASSED }, { FAILED, PASSED },
+						{ PASSED, TIMEOUT } }, 1000),
+				results(2, new String[] { "a", "b", "c" }, new byte[][] {
+						{ PASSED, PASSED }, { PASSED, FAILED },
+						{ PASSED, PASSED } }, 1000));
+		assertEquals(Arrays.asList("new", "b", "c", "a"),
+				sort(history, "a", "b", "c", "new"));
+	}
+
+	@Test
+	public void putsTheSlowestFirstAmongEquallyFailing() {
+		List<StoredResults> history = Arrays.asList(
+				results(1, new String[] { "fast" }, new byte[][] { { PASSED,
+						PASSED } }, 1000),
+				results(1, new String[] { "slow" }, new byte[][] { { PASSED,
+						PASSED } }, 5000));
+		assertEquals(Arrays.asList("slow", "fast"),
+				sort(history, "fast", "slow"));
+		assertEquals(5000, new SuiteOrder(history).get("slow")
+				.getLongestDuration());
+	}
+
+	@Test
+	public void keepsTheConfiguredOrderOfTies() {
+		List<StoredResults> history = Arrays.asList(results(1, new String[] {
+				"a", "b" }, new byte[][] { { PASSED, PASSED },
+				{ PASSED, PASSED } }, 1000));
+		assertEquals(Arrays.asList("new", "other", "b", "a"),
+				sort(history, "b", "a", "new", "other"));
+	}
+
+	private static List<String> sort(List<StoredResults> history,
+			String... names) {
+		List<String> sorted = new ArrayList<String>(Arrays.asList(names));
+		Collections.sort(sorted, new SuiteOrder(history));
+		return sorted;
+	}
+
+	/**
+	 * @return the results of a build whose runs all took the same time in
+	 *         every browser
+	 */
+	private static StoredResults results(int buildNumber, String[] runNames,
+			byte[][] statuses, int duration) {
+		String[] runUrls = new String[runNames.length];
+		int[][] durations = new int[runNames.length][BROWSERS.length];
+		for (int run = 0; run < runNames.length; run++) {
+			runUrls[run] = "http://localhost/" + runNames[run];
+			Arrays.fill(durations[run], duration);
+		}
+		return new StoredResults(buildNumber, buildNumber * 1000L,
+				TestSwarmBuilder.ALL_PASSING, BROWSERS, runNames, runUrls,
+				statuses, durations);
+	}
+
+}
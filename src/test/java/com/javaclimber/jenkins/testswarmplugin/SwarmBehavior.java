@@ -0,0 +1,171 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * How the swarm behind a {@link FakeTestSwarm} behaves: which browsers are
+ * connected, how many clients each has and how long they take per run, how
+ * often runs fail, and how the server misbehaves.
+ *
+ * Each browser works through the runs of a job in order, one run per client
+ * at a time. A browser without clients never picks a run up.
+ */
+public class SwarmBehavior {
+
+	private final List<Browser> browsers = new ArrayList<Browser>();
+
+	private double failureRate;
+
+	private double errorRate;
+
+	private double timeoutRate;
+
+	private long responseDelayInMillis;
+
+	private double slowRate;
+
+	private long slowDelayInMillis = 5 * 1000;
+
+	private double hangRate;
+
+	private long hangDelayInMillis = 10 * 60 * 1000;
+
+	private double serverErrorRate;
+
+	/**
+	 * Connects a browser to the swarm.
+	 *
+	 * @param latencyInMillis
+	 *            time before its clients pick up the first run of a new job
+	 */
+	public SwarmBehavior browser(String userAgent, int clients,
+			long runInMillis, long latencyInMillis) {
+		browsers.add(new Browser(userAgent, clients, runInMillis,
+				latencyInMillis));
+		return this;
+	}
+
+	/**
+	 * Share of the runs which fail, error out or time out in a browser.
+	 */
+	public SwarmBehavior outcomes(double failureRate, double errorRate,
+			double timeoutRate) {
+		this.failureRate = failureRate;
+		this.errorRate = errorRate;
+		this.timeoutRate = timeoutRate;
+		return this;
+	}
+
+	/**
+	 * Time the server takes to answer every request.
+	 */
+	public SwarmBehavior responseDelay(long delayInMillis) {
+		this.responseDelayInMillis = delayInMillis;
+		return this;
+	}
+
+	/**
+	 * Share of the requests answered only after an extra delay.
+	 */
+	public SwarmBehavior slowResponses(double rate, long delayInMillis) {
+		this.slowRate = rate;
+		this.slowDelayInMillis = delayInMillis;
+		return this;
+	}
+
+	/**
+	 * Share of the requests which hang, not answered before the delay is
+	 * over or the server is stopped.
+	 */
+	public SwarmBehavior hungResponses(double rate, long delayInMillis) {
+		this.hangRate = rate;
+		this.hangDelayInMillis = delayInMillis;
+		return this;
+	}
+
+	/**
+	 * Share of the requests answered with HTTP 500.
+	 */
+	public SwarmBehavior serverErrors(double rate) {
+		this.serverErrorRate = rate;
+		return this;
+	}
+
+	public List<Browser> getBrowsers() {
+		return Collections.unmodifiableList(browsers);
+	}
+
+	public double getFailureRate() {
+		return failureRate;
+	}
+
+	public double getErrorRate() {
+		return errorRate;
+	}
+
+	public double getTimeoutRate() {
+		return timeoutRate;
+	}
+
+	public long getResponseDelayInMillis() {
+		return responseDelayInMillis;
+	}
+
+	public double getSlowRate() {
+		return slowRate;
+	}
+
+	public long getSlowDelayInMillis() {
+		return slowDelayInMillis;
+	}
+
+	public double getHangRate() {
+		return hangRate;
+	}
+
+	public long getHangDelayInMillis() {
+		return hangDelayInMillis;
+	}
+
+	public double getServerErrorRate() {
+		return serverErrorRate;
+	}
+
+	public static final class Browser {
+
+		private final String userAgent;
+
+		private final int clients;
+
+		private final long runInMillis;
+
+		private final long latencyInMillis;
+
+		Browser(String userAgent, int clients, long runInMillis,
+				long latencyInMillis) {
+			this.userAgent = userAgent;
+			this.clients = clients;
+			this.runInMillis = runInMillis;
+			this.latencyInMillis = latencyInMillis;
+		}
+
+		public String getUserAgent() {
+			return userAgent;
+		}
+
+		public int getClients() {
+			return clients;
+		}
+
+		public long getRunInMillis() {
+			return runInMillis;
+		}
+
+		public long getLatencyInMillis() {
+			return latencyInMillis;
+		}
+	}
+
+}
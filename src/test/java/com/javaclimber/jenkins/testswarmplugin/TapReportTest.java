@@ -0,0 +1,76 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmBuilder.TestSuiteData;
+
+/**
+ * Checks the TAP report {@link TapReport} writes for a snapshot, line for
+ * line.
+ */
+public class TapReportTest {
+
+	private static final String[] BROWSERS = { "Chrome|20", "Firefox|15" };
+
+	@Test
+	public void writesARunPerTestPoint() throws IOException {
+		JobSnapshot snapshot = new JobSnapshot.Builder()
+				.addRun("core #1\nsecond line",
+						"http://localhost/core?a=1&b=2#top", BROWSERS,
+						RunStatus.PASSED)
+				.addRun("ajax", "http://localhost/ajax",
+						new String[] { "Firefox|15" }, RunStatus.FAILED)
+				.addRun("css <slow>", "http://localhost/css", BROWSERS,
+						RunStatus.TIMEOUT)
+				.addRun("event", "http://localhost/event", BROWSERS,
+						RunStatus.PASSED).build();
+		TapReport report = new TapReport(snapshot, 1,
+				Arrays.asList("http://testswarm.example.org/job/7"),
+				Arrays.asList(new SuiteOutcome("fingerprint", "event",
+						"http://localhost/event", BROWSERS, 41)),
+				Arrays.asList(new TestSuiteData("offline # flaky",
+						"http://localhost/offline", false, true, null)));
+
+		assertEquals("1..5\n"
+				+ "# http://testswarm.example.org/job/7\n"
+				+ "ok 1 - core \\#1 second line\n"
+				+ "# http://localhost/core?a=1&b=2#top\n"
+				+ "not ok 2 - ajax\n"
+				+ "# failing - [Firefox|15]\n"
+				+ "# passed - []\n"
+				+ "# http://localhost/ajax\n"
+				+ "not ok 3 - css <slow>\n"
+				+ "# passing: 0 < 1\n"
+				+ "# http://localhost/css\n"
+				+ "ok 4 - event\n"
+				+ "# http://localhost/event\n"
+				+ "# reused from build #41\n"
+				+ "ok 5 - offline \\# flaky # SKIP test disabled\n",
+				write(report));
+	}
+
+	@Test
+	public void writesAnEmptyPlanWithoutRuns() throws IOException {
+		TapReport report = new TapReport(new JobSnapshot.Builder().build(), 1,
+				Collections.<String> emptyList(),
+				Collections.<SuiteOutcome> emptyList(),
+				Collections.<TestSuiteData> emptyList());
+		assertEquals("1..0\n", write(report));
+	}
+
+	private static String write(TapReport report) throws IOException {
+		StringWriter out = new StringWriter();
+		TapWriter tap = new TapWriter(out);
+		report.write(tap);
+		tap.close();
+		return out.toString();
+	}
+
+}
@@ -0,0 +1,69 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks the job status {@link TestSwarmDecisionMaker} derives from the
+ * statuses of the runs.
+ */
+public class TestSwarmDecisionMakerTest {
+
+	private static final String[] BROWSERS = { "Chrome|20", "Firefox|15" };
+
+	private final TestSwarmDecisionMaker decisionMaker = new TestSwarmDecisionMaker();
+
+	@Test
+	public void keepsWaitingOnAFailureWithRunsInProgress() {
+		JobSnapshot snapshot = new JobSnapshot.Builder()
+				.addRun("a", "http://localhost/a", BROWSERS, RunStatus.FAILED)
+				.addRun("b", "http://localhost/b", BROWSERS,
+						RunStatus.PROGRESS).build();
+		assertEquals(TestSwarmBuilder.FAILURE_IN_PROGRESS,
+				decisionMaker.jobStatus(snapshot, 1, false, null));
+	}
+
+	@Test
+	public void failsFastOnAFailureWithRunsInProgress() {
+		JobSnapshot snapshot = new JobSnapshot.Builder()
+				.addRun("a", "http://localhost/a", BROWSERS, RunStatus.FAILED)
+				.addRun("b", "http://localhost/b", BROWSERS,
+						RunStatus.PROGRESS).build();
+		assertEquals(TestSwarmBuilder.FAILURE_DONE,
+				decisionMaker.jobStatus(snapshot, 1, true, null));
+	}
+
+	@Test
+	public void failsOnceSettledWithTooFewPasses() {
+		JobSnapshot snapshot = new JobSnapshot.Builder()
+				.addRun("a", "http://localhost/a", BROWSERS, RunStatus.PASSED)
+				.addRun("b", "http://localhost/b", BROWSERS,
+						RunStatus.TIMEOUT).build();
+		assertEquals(TestSwarmBuilder.FAILURE_DONE,
+				decisionMaker.jobStatus(snapshot, 1, false, null));
+
+		snapshot = new JobSnapshot.Builder().addRun("a",
+				"http://localhost/a", BROWSERS, RunStatus.PASSED).build();
+		assertEquals(TestSwarmBuilder.FAILURE_DONE,
+				decisionMaker.jobStatus(snapshot, 3, false, null));
+	}
+
+	@Test
+	public void passesOnceEveryRunPassed() {
+		JobSnapshot snapshot = new JobSnapshot.Builder()
+				.addRun("a", "http://localhost/a", BROWSERS, RunStatus.PASSED)
+				.addRun("b", "http://localhost/b", BROWSERS,
+						RunStatus.PROGRESS).build();
+		assertEquals(TestSwarmBuilder.IN_PROGRESS_NOT_ENOUGH_PASSING_NO_ERRORS,
+				decisionMaker.jobStatus(snapshot, 1, false, null));
+
+		snapshot = new JobSnapshot.Builder()
+				.addRun("a", "http://localhost/a", BROWSERS, RunStatus.PASSED)
+				.addRun("b", "http://localhost/b", BROWSERS, RunStatus.PASSED)
+				.build();
+		assertEquals(TestSwarmBuilder.ALL_PASSING,
+				decisionMaker.jobStatus(snapshot, 2, false, null));
+	}
+
+}
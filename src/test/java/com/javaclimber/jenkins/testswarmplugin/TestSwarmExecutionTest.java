@@ -0,0 +1,185 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.StreamBuildListener;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmBuilder.TestSuiteData;
+
+/**
+ * Checks which suites an incremental {@link TestSwarmExecution} submits and
+ * which it carries forward from the previous build, also once the suites are
+ * reordered.
+ */
+public class TestSwarmExecutionTest extends HudsonTestCase {
+
+	private static final String[] BROWSERS = { "Chrome|20", "Firefox|15" };
+
+	private final BuildListener listener = new StreamBuildListener(
+			new ByteArrayOutputStream());
+
+	private FreeStyleBuild build;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		build = createFreeStyleProject().scheduleBuild2(0).get();
+	}
+
+	public void testSubmitsOnlyChangedOrFailingSuites() throws Exception {
+		TestSwarmExecution first = execution(suite("a", "http://localhost/a"),
+				suite("b", "http://localhost/b"),
+				suite("c", "http://localhost/c"),
+				suite("d", "http://localhost/d"));
+		first.selectIncremental("popular", 1, null);
+		assertEquals(Arrays.asList("a", "b", "c", "d"),
+				names(first.getSubmittedTestSuites()));
+		first.setPoll(polled(new JobSnapshot.Builder()
+				.addRun("a", "http://localhost/a", BROWSERS, RunStatus.PASSED)
+				.addRun("b", "http://localhost/b", BROWSERS, RunStatus.PASSED)
+				.addRun("c", "http://localhost/c", BROWSERS, RunStatus.FAILED)
+				.addRun("d", "http://localhost/d", BROWSERS,
+						RunStatus.PROGRESS).build()));
+		List<SuiteOutcome> passed = first.getPassedSuites(1);
+		assertEquals(Arrays.asList("a", "b"), outcomeNames(passed));
+
+		TestSwarmExecution second = execution(
+				suite("a", "http://localhost/a"),
+				suite("b", "http://localhost/b?changed"),
+				suite("c", "http://localhost/c"),
+				suite("d", "http://localhost/d"));
+		second.selectIncremental("popular", 1, passed);
+		assertEquals(Arrays.asList("b", "c", "d"),
+				names(second.getSubmittedTestSuites()));
+		assertEquals(Arrays.asList("a"),
+				outcomeNames(second.getReusedSuites()));
+		// carried forward to the next build, which did not poll
+		assertEquals(Arrays.asList("a"),
+				outcomeNames(second.getPassedSuites(1)));
+	}
+
+	public void testSubmitsSuitesWithTooFewPassesOrOtherBrowsers()
+			throws Exception {
+		TestSwarmExecution first = execution(suite("a", "http://localhost/a"));
+		first.selectIncremental("popular", 1, null);
+		first.setPoll(polled(new JobSnapshot.Builder().addRun("a",
+				"http://localhost/a", BROWSERS, RunStatus.PASSED).build()));
+		List<SuiteOutcome> passed = first.getPassedSuites(2);
+		assertEquals(Arrays.asList("a"), outcomeNames(passed));
+
+		TestSwarmExecution second = execution(suite("a", "http://localhost/a"));
+		second.selectIncremental("popular", 3, passed);
+		assertEquals(Arrays.asList("a"),
+				names(second.getSubmittedTestSuites()));
+
+		TestSwarmExecution third = execution(suite("a", "http://localhost/a"));
+		third.selectIncremental("current", 1, passed);
+		assertEquals(Arrays.asList("a"),
+				names(third.getSubmittedTestSuites()));
+	}
+
+	public void testLeavesDisabledSuitesOut() throws Exception {
+		TestSwarmExecution execution = execution(
+				suite("a", "http://localhost/a"), new TestSuiteData("b",
+						"http://localhost/b", false, true, null));
+		execution.selectIncremental("popular", 1, null);
+		assertEquals(Arrays.asList("a"),
+				names(execution.getSubmittedTestSuites()));
+		assertEquals(Arrays.asList("b"),
+				names(execution.getDisabledTestSuites()));
+	}
+
+	public void testReordersTheSuitesWithTheirSelection() throws Exception {
+		TestSwarmExecution first = execution(suite("a", "http://localhost/a"),
+				suite("b", "http://localhost/b"));
+		first.selectIncremental("popular", 1, null);
+		first.setPoll(polled(new JobSnapshot.Builder()
+				.addRun("a", "http://localhost/a", BROWSERS, RunStatus.FAILED)
+				.addRun("b", "http://localhost/b", BROWSERS, RunStatus.PASSED)
+				.build()));
+
+		TestSwarmExecution second = execution(
+				suite("a", "http://localhost/a"),
+				suite("b", "http://localhost/b"),
+				suite("c", "http://localhost/c"),
+				suite("d", "http://localhost/d"));
+		second.selectIncremental("popular", 1, first.getPassedSuites(1));
+		// puts c and d first and keeps the order of the others
+		second.reorder(new Comparator<String>() {
+			public int compare(String a, String b) {
+				return rank(a) - rank(b);
+			}
+
+			private int rank(String name) {
+				return name.equals("c") || name.equals("d") ? 0 : 1;
+			}
+		});
+		assertEquals(Arrays.asList("c", "d", "a"),
+				names(second.getSubmittedTestSuites()));
+		assertEquals(Arrays.asList("b"),
+				outcomeNames(second.getReusedSuites()));
+
+		// the runs come back in the new order and pass with their suites
+		second.setPoll(polled(new JobSnapshot.Builder()
+				.addRun("c", "http://localhost/c", BROWSERS, RunStatus.PASSED)
+				.addRun("d", "http://localhost/d", BROWSERS, RunStatus.PASSED)
+				.addRun("a", "http://localhost/a", BROWSERS, RunStatus.PASSED)
+				.build()));
+		TestSwarmExecution third = execution(suite("a", "http://localhost/a"),
+				suite("b", "http://localhost/b"),
+				suite("c", "http://localhost/c"),
+				suite("d", "http://localhost/d"));
+		third.selectIncremental("popular", 1, second.getPassedSuites(1));
+		assertEquals(Collections.emptyList(),
+				names(third.getSubmittedTestSuites()));
+		assertEquals(Arrays.asList("a", "b", "c", "d"),
+				outcomeNames(third.getReusedSuites()));
+	}
+
+	private TestSwarmExecution execution(TestSuiteData... suites) {
+		return new TestSwarmExecution(build, listener,
+				"http://testswarm.example.org", "job", suites);
+	}
+
+	/**
+	 * @return a poll which last saw the given snapshot
+	 */
+	private TestSwarmJobPoll polled(final JobSnapshot snapshot) {
+		return new TestSwarmJobPoll(Collections.<String> emptyList(), 1,
+				false, new PollingPolicy(1000, 0), 0,
+				new TestSwarmDecisionMaker(), listener, false) {
+			@Override
+			public JobSnapshot getSnapshot() {
+				return snapshot;
+			}
+		};
+	}
+
+	private static TestSuiteData suite(String name, String url) {
+		return new TestSuiteData(name, url, false, false, null);
+	}
+
+	private static List<String> names(List<TestSuiteData> suites) {
+		List<String> names = new ArrayList<String>();
+		for (TestSuiteData suite : suites)
+			names.add(suite.getTestName());
+		return names;
+	}
+
+	private static List<String> outcomeNames(List<SuiteOutcome> outcomes) {
+		List<String> names = new ArrayList<String>();
+		for (SuiteOutcome outcome : outcomes)
+			names.add(outcome.getName());
+		return names;
+	}
+
+}
@@ -0,0 +1,97 @@
+package com.javaclimber.jenkins.testswarmplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.javaclimber.jenkins.testswarmplugin.TestSwarmBuilder.TestSuiteData;
+
+/**
+ * Submits jobs to and polls a {@link FakeTestSwarm} through the shared
+ * {@link TestSwarmHttpClient}.
+ */
+public class TestSwarmHttpClientTest {
+
+	private FakeTestSwarm swarm;
+
+	@Before
+	public void startSwarm() throws IOException {
+		swarm = new FakeTestSwarm(new SwarmBehavior().browser("Chrome|20", 2,
+				60 * 1000, 60 * 1000).browser("Firefox|10", 2, 60 * 1000,
+				60 * 1000));
+		swarm.start();
+	}
+
+	@After
+	public void stopSwarm() {
+		swarm.stop();
+	}
+
+	@Test
+	public void submitsAndReadsBackTheJob() throws Exception {
+		List<TestSuiteData> suites = new ArrayList<TestSuiteData>();
+		suites.add(new TestSuiteData("caf\u00e9 & co", "http://localhost/a b",
+				false, false, null));
+		suites.add(new TestSuiteData("second", "http://localhost/b?x=1&y=2",
+				false, false, null));
+
+		int first = submit(suites);
+		// the connection is reused once the response was read to the end
+		int second = submit(suites);
+		assertTrue(second != first);
+		assertEquals(2, swarm.getAddJobRequests());
+
+		String jobUrl = swarm.getUrl() + "/api.php?format=json&action=job&item="
+				+ first;
+		TestSwarmHttpClient.Response response = TestSwarmHttpClient.get().get(
+				jobUrl);
+		JobSnapshot snapshot = JobSnapshot.parse(response.getBody());
+		assertEquals(2, snapshot.getRunCount());
+		assertEquals(2, snapshot.getUserAgentCount());
+		for (int r = 0; r < suites.size(); r++) {
+			assertEquals(suites.get(r).getTestName(), snapshot.getRun(r)
+					.getName());
+			assertEquals(suites.get(r).getTestUrl(), snapshot.getRun(r)
+					.getUrl());
+			assertEquals(RunStatus.NEW, snapshot.getRun(r).getStatus(0));
+		}
+
+		// nothing changed, the server answers 304 and the body is kept
+		TestSwarmHttpClient.Response again = TestSwarmHttpClient.get().get(
+				jobUrl);
+		assertTrue(again.isNotModified());
+		assertSame(response.getBody(), again.getBody());
+		assertEquals(1, swarm.getNotModified());
+		TestSwarmHttpClient.get().forget(jobUrl);
+	}
+
+	@Test
+	public void reportsSubmissionErrors() throws Exception {
+		try {
+			submit(new ArrayList<TestSuiteData>());
+			fail("an empty job was accepted");
+		} catch (IOException ex) {
+			assertTrue(ex.getMessage(),
+					ex.getMessage().contains("missing-parameters"));
+		}
+		assertFalse(swarm.getAddJobRequests() == 0);
+	}
+
+	private int submit(List<TestSuiteData> suites) throws IOException {
+		AddJobRequest request = new AddJobRequest("project", "token", "job",
+				"1", "popular", suites, "UTF-8");
+		return TestSwarmHttpClient.get().post(
+				swarm.getUrl() + "/api.php?action=addjob", request, request);
+	}
+
+}